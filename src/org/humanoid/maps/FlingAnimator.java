@@ -0,0 +1,175 @@
+package org.humanoid.maps;
+
+import android.animation.ValueAnimator;
+import android.content.Context;
+import android.os.Build;
+import android.widget.Scroller;
+
+/**
+ * <p>
+ * Moves a map view after a fling in pixel space.
+ * </p>
+ * 
+ * <p>
+ * The scroller and the previous position are reused, so an animation frame
+ * allocates nothing and moves the map by the scrolled pixels. Frames are
+ * driven by the animation pulse of a value animator, which is synchronized
+ * with the display. Older platforms without value animators post a frame
+ * after the previous one instead.
+ * </p>
+ * 
+ * @author Sebastian Fischer
+ */
+final class FlingAnimator implements Runnable {
+
+	/**
+	 * Animation pulse that only references value animators when the
+	 * platform provides them.
+	 */
+	private static final class Pulse implements
+			ValueAnimator.AnimatorUpdateListener {
+		private static final long DURATION = 1000; // ms, repeated
+
+		private final transient FlingAnimator fling;
+		private final transient ValueAnimator animator;
+
+		Pulse(final FlingAnimator fling) {
+			this.fling = fling;
+			this.animator = ValueAnimator.ofFloat(0, 1);
+			this.animator.setDuration(DURATION);
+			this.animator.setRepeatCount(ValueAnimator.INFINITE);
+			this.animator.addUpdateListener(this);
+		}
+
+		void start() {
+			if (!this.animator.isRunning()) {
+				this.animator.start();
+			}
+		}
+
+		void stop() {
+			this.animator.cancel();
+		}
+
+		@Override
+		public void onAnimationUpdate(final ValueAnimator animation) {
+			this.fling.step();
+		}
+	}
+
+	private final transient MapView mapView;
+	private final transient Scroller scroller;
+	private final transient Pulse pulse;
+	private final transient FrameStats stats;
+
+	private transient boolean running;
+	private transient int prevX;
+	private transient int prevY;
+	private transient long frameTime;
+
+	FlingAnimator(final Context ctx, final MapView mapView) {
+		this.mapView = mapView;
+		this.scroller = new Scroller(ctx);
+		this.stats = new FrameStats();
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			this.pulse = new Pulse(this);
+		} else {
+			this.pulse = null;
+		}
+	}
+
+	FrameStats getStats() {
+		return this.stats;
+	}
+
+	int getFinalX() {
+		return this.scroller.getFinalX();
+	}
+
+	int getFinalY() {
+		return this.scroller.getFinalY();
+	}
+
+	boolean isRunning() {
+		return this.running;
+	}
+
+	/**
+	 * Starts moving the map with the given velocity until it stops or
+	 * reaches one of the given limits. Velocity and limits are given in
+	 * pixels relative to the current center.
+	 */
+	void fling(final int velocityX, final int velocityY, final int minX,
+			final int maxX, final int minY, final int maxY) {
+		this.scroller.forceFinished(true);
+		this.prevX = 0;
+		this.prevY = 0;
+		this.scroller.fling(0, 0, velocityX, velocityY, minX, maxX, minY,
+				maxY);
+
+		this.frameTime = 0;
+		if (!this.running) {
+			this.running = true;
+			if (this.pulse == null) {
+				this.mapView.post(this);
+			} else {
+				this.pulse.start();
+			}
+		}
+	}
+
+	/**
+	 * Stops the current fling.
+	 */
+	void stop() {
+		this.scroller.forceFinished(true);
+		if (this.running) {
+			this.running = false;
+			if (this.pulse == null) {
+				this.mapView.removeCallbacks(this);
+			} else {
+				this.pulse.stop();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		this.step();
+		if (this.running) {
+			this.mapView.post(this);
+		}
+	}
+
+	/**
+	 * Moves the map by the pixels scrolled since the previous frame.
+	 */
+	void step() {
+		if (!this.running) {
+			return;
+		}
+
+		final long now = System.nanoTime();
+		if (this.frameTime != 0) {
+			this.stats.record(now - this.frameTime);
+		}
+		this.frameTime = now;
+
+		if (!this.scroller.computeScrollOffset()) {
+			this.stop();
+			return;
+		}
+
+		final int x = this.scroller.getCurrX();
+		final int y = this.scroller.getCurrY();
+		if (x != this.prevX || y != this.prevY) {
+			this.mapView.moveCenter(x - this.prevX, y - this.prevY);
+			this.prevX = x;
+			this.prevY = y;
+		}
+
+		if (this.scroller.isFinished()) {
+			this.stop();
+		}
+	}
+}
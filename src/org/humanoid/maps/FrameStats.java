@@ -0,0 +1,74 @@
+package org.humanoid.maps;
+
+/**
+ * Statistics of the frame times of map animations, used to check whether
+ * animations run smoothly.
+ * 
+ * @author Sebastian Fischer
+ */
+public final class FrameStats {
+	private static final long FRAME_NANOS = 1000000000L / 60;
+	private static final long DROPPED_NANOS = FRAME_NANOS * 3 / 2;
+	private static final double NANOS_PER_MILLI = 1000000.0;
+
+	private transient int frames;
+	private transient int dropped;
+	private transient long totalNanos;
+	private transient long maxNanos;
+
+	FrameStats() {
+		// recorded by the map view
+	}
+
+	/**
+	 * Records the time between two frames.
+	 * 
+	 * @param nanos
+	 *            frame time in nanoseconds
+	 */
+	synchronized void record(final long nanos) {
+		this.frames++;
+		this.totalNanos += nanos;
+		this.maxNanos = Math.max(this.maxNanos, nanos);
+		if (nanos > DROPPED_NANOS) {
+			this.dropped++;
+		}
+	}
+
+	public synchronized int getFrameCount() {
+		return this.frames;
+	}
+
+	/**
+	 * Returns the number of frames that took longer than one and a half
+	 * display refreshes at 60 Hz, so that at least one refresh was missed.
+	 * 
+	 * @return number of dropped frames
+	 */
+	public synchronized int getDroppedFrameCount() {
+		return this.dropped;
+	}
+
+	public synchronized double getAverageMillis() {
+		return this.frames == 0 ? 0 : this.totalNanos / NANOS_PER_MILLI
+				/ this.frames;
+	}
+
+	public synchronized double getMaxMillis() {
+		return this.maxNanos / NANOS_PER_MILLI;
+	}
+
+	public synchronized void reset() {
+		this.frames = 0;
+		this.dropped = 0;
+		this.totalNanos = 0;
+		this.maxNanos = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return this.frames + " frames, " + this.dropped + " dropped, avg "
+				+ this.getAverageMillis() + " ms, max " + this.getMaxMillis()
+				+ " ms";
+	}
+}
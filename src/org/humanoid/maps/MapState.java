@@ -0,0 +1,151 @@
+package org.humanoid.maps;
+
+import org.mapsforge.core.GeoPoint;
+import org.mapsforge.core.MercatorProjection;
+
+/**
+ * <p>
+ * Position of a map view captured once per frame, consisting of its center,
+ * zoom level and visible bounds.
+ * </p>
+ * 
+ * <p>
+ * Redraw listeners should query this state instead of the map view, so that
+ * all listeners of a frame see the same position and nothing is computed or
+ * allocated per listener. The state cannot be modified by listeners but is
+ * updated by the map view before each dispatch, so it should not be kept
+ * across frames.
+ * </p>
+ * 
+ * @author Sebastian Fischer
+ */
+public final class MapState {
+	private transient GeoPoint center;
+	private transient double latitude;
+	private transient double longitude;
+	private transient byte zoomLevel;
+	private transient double pixelX;
+	private transient double pixelY;
+	private transient double minLatitude;
+	private transient double minLongitude;
+	private transient double maxLatitude;
+	private transient double maxLongitude;
+
+	MapState() {
+		// captured by the map view
+	}
+
+	/**
+	 * Captures the given position of a map view with the given size.
+	 * 
+	 * @param center
+	 *            center of the map view
+	 * @param zoomLevel
+	 *            zoom level of the map view
+	 * @param width
+	 *            width of the map view in pixels
+	 * @param height
+	 *            height of the map view in pixels
+	 */
+	void capture(final GeoPoint center, final byte zoomLevel, final int width,
+			final int height) {
+		this.center = center;
+		this.latitude = center.getLatitude();
+		this.longitude = center.getLongitude();
+		this.zoomLevel = zoomLevel;
+		this.pixelX = MercatorProjection.longitudeToPixelX(this.longitude,
+				zoomLevel);
+		this.pixelY = MercatorProjection.latitudeToPixelY(this.latitude,
+				zoomLevel);
+
+		this.minLongitude = MercatorProjection.pixelXToLongitude(this.pixelX
+				- width / 2.0, zoomLevel);
+		this.maxLongitude = MercatorProjection.pixelXToLongitude(this.pixelX
+				+ width / 2.0, zoomLevel);
+		this.maxLatitude = MercatorProjection.pixelYToLatitude(this.pixelY
+				- height / 2.0, zoomLevel);
+		this.minLatitude = MercatorProjection.pixelYToLatitude(this.pixelY
+				+ height / 2.0, zoomLevel);
+	}
+
+	/**
+	 * Returns whether a position was captured.
+	 * 
+	 * @return false if the map view was not yet redrawn
+	 */
+	public boolean isValid() {
+		return this.center != null;
+	}
+
+	public GeoPoint getCenter() {
+		return this.center;
+	}
+
+	public double getLatitude() {
+		return this.latitude;
+	}
+
+	public double getLongitude() {
+		return this.longitude;
+	}
+
+	public byte getZoomLevel() {
+		return this.zoomLevel;
+	}
+
+	/**
+	 * Returns the horizontal position of the center on the whole map at the
+	 * current zoom level.
+	 * 
+	 * @return pixel coordinate
+	 */
+	public double getPixelX() {
+		return this.pixelX;
+	}
+
+	/**
+	 * Returns the vertical position of the center on the whole map at the
+	 * current zoom level.
+	 * 
+	 * @return pixel coordinate
+	 */
+	public double getPixelY() {
+		return this.pixelY;
+	}
+
+	/**
+	 * Returns the latitude of the bottom edge of the map view.
+	 * 
+	 * @return bottom bound in degrees
+	 */
+	public double getMinLatitude() {
+		return this.minLatitude;
+	}
+
+	/**
+	 * Returns the longitude of the left edge of the map view.
+	 * 
+	 * @return left bound in degrees
+	 */
+	public double getMinLongitude() {
+		return this.minLongitude;
+	}
+
+	/**
+	 * Returns the latitude of the top edge of the map view.
+	 * 
+	 * @return top bound in degrees
+	 */
+	public double getMaxLatitude() {
+		return this.maxLatitude;
+	}
+
+	/**
+	 * Returns the longitude of the right edge of the map view.
+	 * 
+	 * @return right bound in degrees
+	 */
+	public double getMaxLongitude() {
+		return this.maxLongitude;
+	}
+}
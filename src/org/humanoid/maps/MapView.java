@@ -1,17 +1,17 @@
 package org.humanoid.maps;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.mapsforge.core.GeoPoint;
+import org.mapsforge.core.MercatorProjection;
 
 import android.content.Context;
-import android.graphics.Point;
 import android.util.Log;
 import android.view.GestureDetector;
 import android.view.GestureDetector.SimpleOnGestureListener;
 import android.view.MotionEvent;
-import android.widget.Scroller;
 
 /**
  * Extension of a map view that allows to observe the map view when tiles are
@@ -29,8 +29,9 @@ public class MapView extends org.mapsforge.android.maps.MapView {
 	public interface OnRedrawListener {
 
 		/**
-		 * Called when the observed map view is redrawn. The map view is passed
-		 * as parameter and can be queried for map position or zoom level.
+		 * Called once per frame in which the observed map view was redrawn.
+		 * The map view is passed as parameter and its position can be queried
+		 * with {@link MapView#getMapState()}.
 		 * 
 		 * @param mapView
 		 *            observed map view that will be redrawn
@@ -45,7 +46,9 @@ public class MapView extends org.mapsforge.android.maps.MapView {
 	 * @author Sebastian Fischer
 	 */
 	public static abstract class OnMoveListener implements OnRedrawListener {
-		private transient GeoPoint oldCenter;
+		private transient boolean moved;
+		private transient double oldLatitude;
+		private transient double oldLongitude;
 
 		/**
 		 * Called when the observed map view is moved.
@@ -57,13 +60,15 @@ public class MapView extends org.mapsforge.android.maps.MapView {
 
 		@Override
 		public void onRedraw(final MapView mapView) {
-			final GeoPoint newCenter = mapView.getMapPosition().getMapCenter();
-
-			if (oldCenter == null || !this.oldCenter.equals(newCenter)) {
-				this.onMove(newCenter);
+			final MapState state = mapView.getMapState();
+
+			if (!this.moved || this.oldLatitude != state.getLatitude()
+					|| this.oldLongitude != state.getLongitude()) {
+				this.moved = true;
+				this.oldLatitude = state.getLatitude();
+				this.oldLongitude = state.getLongitude();
+				this.onMove(state.getCenter());
 			}
-
-			this.oldCenter = newCenter;
 		}
 	}
 
@@ -86,7 +91,7 @@ public class MapView extends org.mapsforge.android.maps.MapView {
 
 		@Override
 		public void onRedraw(final MapView mapView) {
-			final byte newZoomLevel = mapView.getMapPosition().getZoomLevel();
+			final byte newZoomLevel = mapView.getMapState().getZoomLevel();
 
 			if (newZoomLevel != oldZoomLevel) {
 				this.oldZoomLevel = newZoomLevel;
@@ -104,8 +109,35 @@ public class MapView extends org.mapsforge.android.maps.MapView {
 			return true;
 		}
 
+		@Override
+		public boolean onScroll(final MotionEvent down, final MotionEvent move,
+				final float distanceX, final float distanceY) {
+			// pan bounded maps here to clamp the movement before it is applied
+			if (bounded && move.getPointerCount() == 1) {
+				if (!panning) {
+					panning = true;
+					dispatchSyntheticEvent(move, MotionEvent.ACTION_CANCEL);
+				}
+				panCenter(distanceX, distanceY);
+				return true;
+			} else {
+				return false;
+			}
+		}
+
 		@Override
 		public boolean onDoubleTap(final MotionEvent tap) {
+			if (prefetcher != null) {
+				final byte zoomLevel = computeCenterPixel();
+				double x = centerPixelX, y = centerPixelY;
+				if (!zoomAroundCenter) {
+					x += tap.getX() - getWidth() / 2.0;
+					y += tap.getY() - getHeight() / 2.0;
+				}
+				prefetcher.predictZoomIn(zoomLevel, x, y, getWidth(),
+						getHeight());
+			}
+
 			if (zoomAroundCenter) {
 				getController().zoomIn();
 				return true;
@@ -115,9 +147,87 @@ public class MapView extends org.mapsforge.android.maps.MapView {
 		}
 	}
 
-	private transient List<OnRedrawListener> listeners;
+	/**
+	 * List of listeners that copies its elements when it is modified, so that
+	 * listeners can be dispatched without locking or allocating an iterator.
+	 */
+	private static final class ListenerList extends
+			AbstractList<OnRedrawListener> {
+		private static final OnRedrawListener[] EMPTY = {};
+
+		private transient volatile OnRedrawListener[] array = EMPTY;
+
+		OnRedrawListener[] getArray() {
+			return this.array;
+		}
+
+		@Override
+		public OnRedrawListener get(final int index) {
+			return this.array[index];
+		}
+
+		@Override
+		public int size() {
+			return this.array.length;
+		}
+
+		@Override
+		public synchronized OnRedrawListener set(final int index,
+				final OnRedrawListener listener) {
+			final OnRedrawListener[] copy = this.array.clone();
+			final OnRedrawListener old = copy[index];
+			copy[index] = listener;
+			this.array = copy;
+			return old;
+		}
+
+		@Override
+		public synchronized void add(final int index,
+				final OnRedrawListener listener) {
+			final OnRedrawListener[] old = this.array;
+			if (index < 0 || index > old.length) {
+				throw new IndexOutOfBoundsException("index " + index);
+			}
+			final OnRedrawListener[] copy = new OnRedrawListener[old.length
+					+ 1];
+			System.arraycopy(old, 0, copy, 0, index);
+			copy[index] = listener;
+			System.arraycopy(old, index, copy, index + 1, old.length - index);
+			this.array = copy;
+			this.modCount++;
+		}
+
+		@Override
+		public synchronized OnRedrawListener remove(final int index) {
+			final OnRedrawListener[] old = this.array;
+			final OnRedrawListener removed = old[index];
+			final OnRedrawListener[] copy = new OnRedrawListener[old.length
+					- 1];
+			System.arraycopy(old, 0, copy, 0, index);
+			System.arraycopy(old, index + 1, copy, index, old.length - index
+					- 1);
+			this.array = copy;
+			this.modCount++;
+			return removed;
+		}
+	}
+
+	private transient final ListenerList listeners;
+	private transient final MapState state;
+	private transient final AtomicBoolean redrawPending;
+	private transient final Runnable dispatcher;
 	private transient final GestureDetector gestureDetector;
-	private transient final Scroller scroller;
+	private transient final FlingAnimator flingAnimator;
+
+	private transient volatile boolean bounded;
+	// whether the current gesture was taken over from the mapsforge handler
+	private transient boolean panning;
+	private transient double minLat, minLon, maxLat, maxLon;
+	private transient TilePrefetcher prefetcher;
+	// position of the center in pixels, computed by computeCenterPixel
+	private transient double centerPixelX, centerPixelY;
+	// range of the center in pixels, computed by computeCenterLimits
+	private transient double centerMinX, centerMaxX, centerMinY, centerMaxY;
 
 	private transient boolean zoomAroundCenter;
 
@@ -125,7 +235,22 @@ public class MapView extends org.mapsforge.android.maps.MapView {
 		super(ctx);
 
 		this.gestureDetector = new GestureDetector(ctx, new GestureListener());
-		this.scroller = new Scroller(ctx);
+		this.flingAnimator = new FlingAnimator(ctx, this);
+		this.listeners = new ListenerList();
+		this.state = new MapState();
+		this.redrawPending = new AtomicBoolean();
+		this.dispatcher = new Runnable() {
+
+			@Override
+			public void run() {
+				redrawPending.set(false);
+				captureMapState();
+				if (bounded) {
+					moveIntoBounds();
+				}
+				onRedraw();
+			}
+		};
 	}
 
 	public void forceZoomAroundCenter(final boolean zoomAroundCenter) {
@@ -135,63 +260,205 @@ public class MapView extends org.mapsforge.android.maps.MapView {
 	@Override
 	public boolean dispatchTouchEvent(final MotionEvent event) {
 		try {
-			return this.gestureDetector.onTouchEvent(event)
-					|| super.dispatchTouchEvent(event);
+			final int action = event.getAction() & MotionEvent.ACTION_MASK;
+			if (action == MotionEvent.ACTION_DOWN) {
+				this.panning = false;
+			} else if (action == MotionEvent.ACTION_POINTER_DOWN
+					&& this.panning) {
+				// a pinch after a pan is zoomed by the mapsforge handler
+				this.panning = false;
+				this.dispatchSyntheticEvent(event, MotionEvent.ACTION_DOWN);
+			}
+			final boolean handled = this.gestureDetector.onTouchEvent(event);
+			// the rest of a gesture that was taken over is not passed on
+			return handled || this.panning || super.dispatchTouchEvent(event);
 		} catch (Exception e) {
 			Log.w("MapView", "Exception in TouchEvent listener", e);
 			return false;
 		}
 	}
 
+	/**
+	 * Passes a copy of the given event with the given action to the mapsforge
+	 * touch handler. Cancelling the gesture when a pan is taken over prevents
+	 * taps or long presses after a pan that it did not receive, starting a
+	 * new gesture hands it back.
+	 */
+	private void dispatchSyntheticEvent(final MotionEvent event,
+			final int action) {
+		final MotionEvent copy = MotionEvent.obtain(event);
+		copy.setAction(action);
+		super.dispatchTouchEvent(copy);
+		copy.recycle();
+	}
+
 	public void fling(final double velocityX, final double velocityY) {
 		final int maxDist = 1000000;
-		this.scroller.forceFinished(true);
-		this.scroller.fling(0, 0, (int) -velocityX / 3, (int) -velocityY / 3,
-				-maxDist, maxDist, -maxDist, maxDist);
-		this.scroll();
+		int minX = -maxDist, maxX = maxDist, minY = -maxDist, maxY = maxDist;
+
+		final byte zoomLevel = this.computeCenterPixel();
+		final double x = this.centerPixelX, y = this.centerPixelY;
+		if (this.bounded) {
+			this.computeCenterLimits(zoomLevel);
+			minX = (int) Math.min(0, Math.ceil(this.centerMinX - x));
+			maxX = (int) Math.max(0, Math.floor(this.centerMaxX - x));
+			minY = (int) Math.min(0, Math.ceil(this.centerMinY - y));
+			maxY = (int) Math.max(0, Math.floor(this.centerMaxY - y));
+		}
+
+		this.flingAnimator.fling((int) -velocityX / 3, (int) -velocityY / 3,
+				minX, maxX, minY, maxY);
+		if (this.prefetcher != null) {
+			this.prefetcher.predictPath(zoomLevel, x, y,
+					x + this.flingAnimator.getFinalX(),
+					y + this.flingAnimator.getFinalY(), this.getWidth(),
+					this.getHeight());
+		}
+	}
+
+	/**
+	 * Computes the position of the center in pixels at the current zoom
+	 * level.
+	 * 
+	 * @return current zoom level
+	 */
+	private byte computeCenterPixel() {
+		final GeoPoint center = this.getMapPosition().getMapCenter();
+		final byte zoomLevel = this.getMapPosition().getZoomLevel();
+		this.centerPixelX = MercatorProjection.longitudeToPixelX(
+				center.getLongitude(), zoomLevel);
+		this.centerPixelY = MercatorProjection.latitudeToPixelY(
+				center.getLatitude(), zoomLevel);
+		return zoomLevel;
 	}
 
-	private Point getCenterPoint() {
-		final Point center = new Point();
-		this.getProjection().toPixels(this.getMapPosition().getMapCenter(),
-				center);
-		return center;
+	/**
+	 * Moves the center of this map view by the given number of pixels.
+	 * 
+	 * @param deltaX
+	 *            horizontal distance, positive values move the center right
+	 * @param deltaY
+	 *            vertical distance, positive values move the center down
+	 */
+	void moveCenter(final float deltaX, final float deltaY) {
+		this.getMapPosition().moveMap(-deltaX, -deltaY);
+		this.redrawTiles();
+	}
+
+	/**
+	 * Moves the center of this map view by the given number of pixels but
+	 * not beyond the bounding box.
+	 */
+	private void panCenter(final float deltaX, final float deltaY) {
+		this.computeCenterLimits(this.computeCenterPixel());
+		final double x = this.centerPixelX, y = this.centerPixelY;
+		final double clampedX = clamp(x + deltaX, this.centerMinX,
+				this.centerMaxX);
+		final double clampedY = clamp(y + deltaY, this.centerMinY,
+				this.centerMaxY);
+		if (clampedX != x || clampedY != y) {
+			this.moveCenter((float) (clampedX - x), (float) (clampedY - y));
+		}
 	}
 
-	private void scroll() {
-		this.scroll(null);
+	/**
+	 * Moves the map back into the bounding box if the captured state is
+	 * outside of it, for example after zooming out.
+	 */
+	private void moveIntoBounds() {
+		this.computeCenterLimits(this.state.getZoomLevel());
+		final double x = this.state.getPixelX();
+		final double y = this.state.getPixelY();
+		final double clampedX = clamp(x, this.centerMinX, this.centerMaxX);
+		final double clampedY = clamp(y, this.centerMinY, this.centerMaxY);
+		// ignore rounding errors of the captured position
+		if (Math.abs(clampedX - x) >= 1 || Math.abs(clampedY - y) >= 1) {
+			this.moveCenter((float) (clampedX - x), (float) (clampedY - y));
+		}
 	}
 
-	private void scroll(final Runnable postAction) {
-		this.post(new Runnable() {
+	/**
+	 * Computes the range in pixels in which the center can move at the given
+	 * zoom level without showing anything outside the bounding box. If the
+	 * box is smaller than the map view, the center is fixed at the center of
+	 * the box.
+	 */
+	private void computeCenterLimits(final byte zoomLevel) {
+		final double halfWidth = this.getWidth() / 2.0;
+		final double halfHeight = this.getHeight() / 2.0;
+		final double left = MercatorProjection.longitudeToPixelX(this.minLon,
+				zoomLevel);
+		final double right = MercatorProjection.longitudeToPixelX(
+				this.maxLon, zoomLevel);
+		final double top = MercatorProjection.latitudeToPixelY(this.maxLat,
+				zoomLevel);
+		final double bottom = MercatorProjection.latitudeToPixelY(
+				this.minLat, zoomLevel);
+
+		if (right - left > 2 * halfWidth) {
+			this.centerMinX = left + halfWidth;
+			this.centerMaxX = right - halfWidth;
+		} else {
+			this.centerMinX = (left + right) / 2;
+			this.centerMaxX = this.centerMinX;
+		}
 
-			int prevX = 0;
-			int prevY = 0;
+		if (bottom - top > 2 * halfHeight) {
+			this.centerMinY = top + halfHeight;
+			this.centerMaxY = bottom - halfHeight;
+		} else {
+			this.centerMinY = (top + bottom) / 2;
+			this.centerMaxY = this.centerMinY;
+		}
+	}
 
-			@Override
-			public void run() {
-				if (scroller.isFinished()) {
-					if (postAction != null) {
-						postAction.run();
-					}
-				} else {
-					if (scroller.computeScrollOffset()) {
-						final Point center = getCenterPoint();
-						final int deltaX = scroller.getCurrX() - prevX;
-						final int deltaY = scroller.getCurrY() - prevY;
-						prevX = scroller.getCurrX();
-						prevY = scroller.getCurrY();
-						setCenter(getProjection().fromPixels(center.x + deltaX,
-								center.y + deltaY));
-						post(this);
-					}
-				}
-			}
-		});
+	private static double clamp(final double value, final double min,
+			final double max) {
+		return Math.max(min, Math.min(max, value));
 	}
 
 	public void cancelScrolling() {
-		this.scroller.forceFinished(true);
+		this.flingAnimator.stop();
+		if (this.prefetcher != null) {
+			this.prefetcher.cancel();
+		}
+	}
+
+	/**
+	 * Sets the prefetcher that queues tiles predicted to become visible
+	 * during flings and zooms, replacing a previously set prefetcher.
+	 * 
+	 * @param prefetcher
+	 *            tile prefetcher or null to stop prefetching
+	 */
+	public void setTilePrefetcher(final TilePrefetcher prefetcher) {
+		if (this.prefetcher != null) {
+			this.prefetcher.cancel();
+			this.listeners.remove(this.prefetcher);
+		}
+		this.prefetcher = prefetcher;
+		if (prefetcher != null) {
+			this.listeners.add(prefetcher);
+		}
+	}
+
+	public TilePrefetcher getTilePrefetcher() {
+		return this.prefetcher;
+	}
+
+	/**
+	 * Returns the frame times of fling animations of this map view.
+	 * 
+	 * @return frame statistics, can be reset
+	 */
+	public FrameStats getFlingFrameStats() {
+		return this.flingAnimator.getStats();
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		this.flingAnimator.stop();
+		super.onDetachedFromWindow();
 	}
 
 	/**
@@ -201,16 +468,30 @@ public class MapView extends org.mapsforge.android.maps.MapView {
 	 * @return list of redraw listeners
 	 */
 	public List<OnRedrawListener> getOnRedrawListeners() {
-		if (this.listeners == null) {
-			this.listeners = new ArrayList<OnRedrawListener>();
-		}
 		return this.listeners;
 	}
 
+	/**
+	 * Returns the position of this map view captured for the current frame.
+	 * Should be queried by redraw listeners instead of the map position.
+	 * 
+	 * @return captured map state
+	 */
+	public MapState getMapState() {
+		return this.state;
+	}
+
+	private void captureMapState() {
+		this.state.capture(this.getMapPosition().getMapCenter(), this
+				.getMapPosition().getZoomLevel(), this.getWidth(), this
+				.getHeight());
+	}
+
 	/**
 	 * <p>
-	 * Called when the observed map view is redrawn. The map view is passed as
-	 * parameter and can be queried for map position or zoom level.
+	 * Called once per frame in which the map view was redrawn, after its
+	 * position was captured in the state returned by {@link #getMapState()}.
+	 * Redraws requested before the next frame is handled are coalesced.
 	 * </p>
 	 * 
 	 * <p>
@@ -220,9 +501,10 @@ public class MapView extends org.mapsforge.android.maps.MapView {
 	 * </p>
 	 */
 	public void onRedraw() {
-		for (OnRedrawListener listener : this.getOnRedrawListeners()) {
+		final OnRedrawListener[] current = this.listeners.getArray();
+		for (int i = 0; i < current.length; i++) {
 			try {
-				listener.onRedraw(this);
+				current[i].onRedraw(this);
 			} catch (Exception e) {
 				Log.w("MapView", "Exception in OnRedrawListener", e);
 			}
@@ -231,12 +513,17 @@ public class MapView extends org.mapsforge.android.maps.MapView {
 
 	@Override
 	public void redrawTiles() {
-		this.onRedraw();
 		super.redrawTiles();
+		if (this.redrawPending.compareAndSet(false, true)) {
+			this.post(this.dispatcher);
+		}
 	}
 
 	/**
-	 * Restricts map movement to the given bounding box given in degrees.
+	 * Restricts map movement to the given bounding box given in degrees,
+	 * replacing a previously set bounding box. Flings stop and pans are
+	 * clamped at the bounds, so that the map does not move outside and snap
+	 * back.
 	 * 
 	 * @param minLat
 	 *            bottom bound
@@ -249,54 +536,19 @@ public class MapView extends org.mapsforge.android.maps.MapView {
 	 */
 	public void setBoundingBox(final double minLat, final double minLon,
 			final double maxLat, final double maxLon) {
-		this.getOnRedrawListeners().add(new MapView.OnRedrawListener() {
-			private static final double EPS = 0.001;
-
-			@Override
-			public void onRedraw(final MapView mapView) {
-				final GeoPoint topLeft = mapView.getProjection().fromPixels(
-						mapView.getLeft(), mapView.getTop());
-				final GeoPoint bottomRight = mapView.getProjection()
-						.fromPixels(mapView.getRight(), mapView.getBottom());
-
-				if (this.isOutOfBounds(topLeft, bottomRight)) {
-					this.recenter(mapView, topLeft, bottomRight);
-				}
-			}
-
-			private boolean isOutOfBounds(final GeoPoint topLeft,
-					final GeoPoint bottomRight) {
-
-				return topLeft.getLatitude() > maxLat
-						|| topLeft.getLongitude() < minLon
-						|| bottomRight.getLatitude() < minLat
-						|| bottomRight.getLongitude() > maxLon;
-			}
-
-			private void recenter(final MapView mapView,
-					final GeoPoint topLeft, final GeoPoint bottomRight) {
-
-				final GeoPoint center = mapView.getMapPosition().getMapCenter();
-				double lat = center.getLatitude(), lon = center.getLongitude();
-
-				if (topLeft.getLatitude() > maxLat) {
-					lat = lat + maxLat - topLeft.getLatitude() - EPS;
-				}
-
-				if (topLeft.getLongitude() < minLon) {
-					lon = lon + minLon - topLeft.getLongitude() + EPS;
-				}
-
-				if (bottomRight.getLatitude() < minLat) {
-					lat = lat + minLat - bottomRight.getLatitude() + EPS;
-				}
-
-				if (bottomRight.getLongitude() > maxLon) {
-					lon = lon + maxLon - bottomRight.getLongitude() - EPS;
-				}
+		this.minLat = minLat;
+		this.minLon = minLon;
+		this.maxLat = maxLat;
+		this.maxLon = maxLon;
+		this.bounded = true;
+		this.redrawTiles();
+	}
 
-				setCenter(new GeoPoint(lat, lon));
-			}
-		});
+	/**
+	 * Removes the bounding box set with
+	 * {@link #setBoundingBox(double, double, double, double)}.
+	 */
+	public void clearBoundingBox() {
+		this.bounded = false;
 	}
 }
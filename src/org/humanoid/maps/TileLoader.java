@@ -0,0 +1,32 @@
+package org.humanoid.maps;
+
+import org.mapsforge.core.Tile;
+
+/**
+ * Loads tiles before they become visible, for example into the file system
+ * cache of the map view.
+ * 
+ * @author Sebastian Fischer
+ */
+public interface TileLoader {
+
+	/**
+	 * Queues the given tile to be loaded with low priority, after all tiles
+	 * that are visible. Called on the main thread, so the tile must be loaded
+	 * asynchronously. Tiles are queued in the order in which they are
+	 * expected to become visible.
+	 * 
+	 * @param tile
+	 *            tile that is expected to become visible
+	 */
+	void prefetch(Tile tile);
+
+	/**
+	 * Removes the given tile from the queue if it was not loaded yet, because
+	 * it is no longer expected to become visible.
+	 * 
+	 * @param tile
+	 *            previously queued tile
+	 */
+	void cancel(Tile tile);
+}
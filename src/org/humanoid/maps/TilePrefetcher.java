@@ -0,0 +1,260 @@
+package org.humanoid.maps;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.mapsforge.core.MercatorProjection;
+import org.mapsforge.core.Tile;
+
+/**
+ * <p>
+ * Predicts which tiles of a map view become visible and queues them with a
+ * tile loader before they are needed.
+ * </p>
+ * 
+ * <p>
+ * Predictions extrapolate the visible area along a path, like the remaining
+ * distance of a fling or the expected movement of a tracked location, or
+ * cover the next zoom level. Each prediction replaces the previous one and
+ * cancels its tiles that are no longer expected. When tiles become visible,
+ * they are counted as hits if they were predicted and as misses otherwise.
+ * </p>
+ * 
+ * @author Sebastian Fischer
+ */
+public class TilePrefetcher implements MapView.OnRedrawListener {
+	private static final int DEFAULT_MAX_TILES = 48;
+
+	private transient final TileLoader loader;
+	private transient final Set<Tile> predicted;
+	private transient int maxTiles = DEFAULT_MAX_TILES;
+
+	// range of visible tiles in the last frame
+	private transient byte visibleZoom = -1;
+	private transient long visibleMinX, visibleMaxX, visibleMinY, visibleMaxY;
+
+	private transient int prefetchCount, cancelCount, hitCount, missCount;
+
+	public TilePrefetcher(final TileLoader loader) {
+		this.loader = loader;
+		this.predicted = new LinkedHashSet<Tile>();
+	}
+
+	/**
+	 * Limits the number of tiles queued for a single prediction.
+	 * 
+	 * @param maxTiles
+	 *            maximum number of predicted tiles
+	 */
+	public void setMaxTiles(final int maxTiles) {
+		this.maxTiles = maxTiles;
+	}
+
+	/**
+	 * Predicts the tiles visible while the center of the given map view moves
+	 * along a straight path.
+	 * 
+	 * @param mapView
+	 *            map view whose center moves
+	 * @param fromLatitude
+	 *            latitude of the start of the path
+	 * @param fromLongitude
+	 *            longitude of the start of the path
+	 * @param toLatitude
+	 *            latitude of the end of the path
+	 * @param toLongitude
+	 *            longitude of the end of the path
+	 */
+	public void predictPath(final MapView mapView, final double fromLatitude,
+			final double fromLongitude, final double toLatitude,
+			final double toLongitude) {
+		final byte zoomLevel = mapView.getMapPosition().getZoomLevel();
+		this.predictPath(zoomLevel,
+				MercatorProjection.longitudeToPixelX(fromLongitude, zoomLevel),
+				MercatorProjection.latitudeToPixelY(fromLatitude, zoomLevel),
+				MercatorProjection.longitudeToPixelX(toLongitude, zoomLevel),
+				MercatorProjection.latitudeToPixelY(toLatitude, zoomLevel),
+				mapView.getWidth(), mapView.getHeight());
+	}
+
+	/**
+	 * Predicts the tiles visible while the center moves along a straight
+	 * path given in pixels, ordered by the time they become visible.
+	 */
+	void predictPath(final byte zoomLevel, final double fromX,
+			final double fromY, final double toX, final double toY,
+			final int width, final int height) {
+		final Set<Tile> tiles = new LinkedHashSet<Tile>();
+		final double distance = Math.hypot(toX - fromX, toY - fromY);
+		final int steps = Math.max(1,
+				(int) Math.ceil(distance / (Tile.TILE_SIZE / 2)));
+		for (int i = 1; i <= steps && tiles.size() < this.maxTiles; i++) {
+			this.addTiles(tiles, zoomLevel, fromX + (toX - fromX) * i / steps,
+					fromY + (toY - fromY) * i / steps, width, height);
+		}
+		this.replace(tiles);
+	}
+
+	/**
+	 * Predicts the tiles visible after zooming in around the given center
+	 * given in pixels.
+	 */
+	void predictZoomIn(final byte zoomLevel, final double x, final double y,
+			final int width, final int height) {
+		final Set<Tile> tiles = new LinkedHashSet<Tile>();
+		this.addTiles(tiles, (byte) (zoomLevel + 1), 2 * x, 2 * y, width,
+				height);
+		this.replace(tiles);
+	}
+
+	/**
+	 * Cancels all predicted tiles that were not yet visible.
+	 */
+	public void cancel() {
+		this.replace(new LinkedHashSet<Tile>());
+	}
+
+	private void addTiles(final Set<Tile> tiles, final byte zoomLevel,
+			final double x, final double y, final int width, final int height) {
+		final long minX = MercatorProjection.pixelXToTileX(x - width / 2.0,
+				zoomLevel);
+		final long maxX = MercatorProjection.pixelXToTileX(x + width / 2.0,
+				zoomLevel);
+		final long minY = MercatorProjection.pixelYToTileY(y - height / 2.0,
+				zoomLevel);
+		final long maxY = MercatorProjection.pixelYToTileY(y + height / 2.0,
+				zoomLevel);
+
+		for (long tileY = minY; tileY <= maxY; tileY++) {
+			for (long tileX = minX; tileX <= maxX; tileX++) {
+				if (tiles.size() >= this.maxTiles) {
+					return;
+				}
+				if (!this.isVisible(zoomLevel, tileX, tileY)) {
+					tiles.add(new Tile(tileX, tileY, zoomLevel));
+				}
+			}
+		}
+	}
+
+	private boolean isVisible(final byte zoomLevel, final long tileX,
+			final long tileY) {
+		return zoomLevel == this.visibleZoom && tileX >= this.visibleMinX
+				&& tileX <= this.visibleMaxX && tileY >= this.visibleMinY
+				&& tileY <= this.visibleMaxY;
+	}
+
+	/**
+	 * Replaces the current prediction, queueing new tiles and cancelling
+	 * tiles that are no longer predicted.
+	 */
+	private void replace(final Set<Tile> tiles) {
+		for (Tile tile : this.predicted) {
+			if (!tiles.contains(tile)) {
+				this.loader.cancel(tile);
+				this.cancelCount++;
+			}
+		}
+		for (Tile tile : tiles) {
+			if (!this.predicted.contains(tile)) {
+				this.loader.prefetch(tile);
+				this.prefetchCount++;
+			}
+		}
+		this.predicted.clear();
+		this.predicted.addAll(tiles);
+	}
+
+	/**
+	 * Counts tiles that became visible since the last frame as hits or
+	 * misses. Only allocates if the range of visible tiles changed.
+	 */
+	@Override
+	public void onRedraw(final MapView mapView) {
+		final MapState state = mapView.getMapState();
+		if (!state.isValid()) {
+			return;
+		}
+
+		final byte zoomLevel = state.getZoomLevel();
+		final double halfWidth = mapView.getWidth() / 2.0;
+		final double halfHeight = mapView.getHeight() / 2.0;
+		final long minX = MercatorProjection.pixelXToTileX(state.getPixelX()
+				- halfWidth, zoomLevel);
+		final long maxX = MercatorProjection.pixelXToTileX(state.getPixelX()
+				+ halfWidth, zoomLevel);
+		final long minY = MercatorProjection.pixelYToTileY(state.getPixelY()
+				- halfHeight, zoomLevel);
+		final long maxY = MercatorProjection.pixelYToTileY(state.getPixelY()
+				+ halfHeight, zoomLevel);
+
+		if (zoomLevel == this.visibleZoom && minX == this.visibleMinX
+				&& maxX == this.visibleMaxX && minY == this.visibleMinY
+				&& maxY == this.visibleMaxY) {
+			return;
+		}
+
+		if (this.visibleZoom != -1) {
+			for (long tileY = minY; tileY <= maxY; tileY++) {
+				for (long tileX = minX; tileX <= maxX; tileX++) {
+					if (this.isVisible(zoomLevel, tileX, tileY)) {
+						continue;
+					}
+					if (this.predicted.remove(new Tile(tileX, tileY,
+							zoomLevel))) {
+						this.hitCount++;
+					} else {
+						this.missCount++;
+					}
+				}
+			}
+		}
+
+		this.visibleZoom = zoomLevel;
+		this.visibleMinX = minX;
+		this.visibleMaxX = maxX;
+		this.visibleMinY = minY;
+		this.visibleMaxY = maxY;
+	}
+
+	public int getPrefetchCount() {
+		return this.prefetchCount;
+	}
+
+	public int getCancelCount() {
+		return this.cancelCount;
+	}
+
+	public int getHitCount() {
+		return this.hitCount;
+	}
+
+	/**
+	 * Returns the number of tiles that became visible without being
+	 * predicted, including tiles revealed by movements that cannot be
+	 * predicted like pans.
+	 * 
+	 * @return number of misses
+	 */
+	public int getMissCount() {
+		return this.missCount;
+	}
+
+	/**
+	 * Returns the fraction of tiles that were predicted before they became
+	 * visible.
+	 * 
+	 * @return hit rate between 0 and 1
+	 */
+	public double getHitRate() {
+		final int visible = this.hitCount + this.missCount;
+		return visible == 0 ? 0 : (double) this.hitCount / visible;
+	}
+
+	public void resetCounts() {
+		this.prefetchCount = 0;
+		this.cancelCount = 0;
+		this.hitCount = 0;
+		this.missCount = 0;
+	}
+}
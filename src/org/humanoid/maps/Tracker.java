@@ -7,6 +7,9 @@ import android.location.Location;
 
 
 public abstract class Tracker {
+	// time for which the movement of the tracked location is extrapolated
+	private static final double PREDICTION_SECONDS = 20;
+	private static final double EARTH_RADIUS = 6371000; // m
 
 	public interface OnTrackerStatusChangeListener {
 		void onTrackerStatusChange();
@@ -21,11 +24,12 @@ public abstract class Tracker {
 
 	private class MoveListener extends MapView.OnMoveListener {
 
-		private transient boolean isActive = true;
+		// center set by this tracker, moves to it are not caused by the user
+		private transient volatile GeoPoint trackedCenter;
 
 		@Override
 		public void onMove(final GeoPoint location) {
-			if (isTracking && this.isActive) {
+			if (isTracking && !location.equals(this.trackedCenter)) {
 				stopTracking();
 			}
 		}
@@ -93,10 +97,11 @@ public abstract class Tracker {
 
 				@Override
 				public void run() {
-					moveListener.isActive = false;
-					mapView.setCenter(new GeoPoint(location.getLatitude(),
-							location.getLongitude()));
-					moveListener.isActive = true;
+					final GeoPoint center = new GeoPoint(location
+							.getLatitude(), location.getLongitude());
+					moveListener.trackedCenter = center;
+					mapView.setCenter(center);
+					prefetchAlong(location);
 				}
 			});
 		}
@@ -104,6 +109,33 @@ public abstract class Tracker {
 		this.notifyStatusChangeListener();
 	}
 
+	/**
+	 * Prefetches the tiles along the expected movement of the given
+	 * location, or cancels prefetching if the location does not move.
+	 */
+	private void prefetchAlong(final Location location) {
+		final TilePrefetcher prefetcher = this.mapView.getTilePrefetcher();
+		if (prefetcher == null) {
+			return;
+		}
+
+		if (!location.hasSpeed() || !location.hasBearing()
+				|| location.getSpeed() <= 0) {
+			prefetcher.cancel();
+			return;
+		}
+
+		final double angle = location.getSpeed() * PREDICTION_SECONDS
+				/ EARTH_RADIUS;
+		final double bearing = Math.toRadians(location.getBearing());
+		final double lat = location.getLatitude();
+		final double lon = location.getLongitude();
+		prefetcher.predictPath(this.mapView, lat, lon,
+				lat + Math.toDegrees(angle * Math.cos(bearing)),
+				lon + Math.toDegrees(angle * Math.sin(bearing)
+						/ Math.cos(Math.toRadians(lat))));
+	}
+
 	protected void propagateTrackedLocation() {
 		if (this.getTrackedLocation() != null) {
 			this.updateLocation(this.getTrackedLocation());
@@ -0,0 +1,175 @@
+package org.humanoid.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * <p>
+ * Stream that reads ahead from another stream on a separate thread.
+ * </p>
+ * 
+ * <p>
+ * A reader thread fills a bounded ring of reusable buffers from the source
+ * stream while the consumer reads from buffers that have already been filled.
+ * Reading from a slow source, like a network connection, thus overlaps with
+ * processing the bytes that were read, like inflating and writing them. The
+ * reader blocks when all buffers are filled, so at most a fixed amount of
+ * memory is used. Errors of the source are rethrown to the consumer after the
+ * bytes read before them.
+ * </p>
+ */
+final class BufferRing extends InputStream {
+
+	/**
+	 * Reusable buffer with the number of valid bytes it contains.
+	 */
+	private static final class Chunk {
+		private final transient byte[] data;
+		private transient int length;
+
+		Chunk(final int size) {
+			this.data = new byte[size];
+		}
+	}
+
+	private static final Chunk END = new Chunk(0);
+
+	private final transient InputStream source;
+	private final transient BlockingQueue<Chunk> free;
+	private final transient BlockingQueue<Chunk> filled;
+	private final transient Thread reader;
+
+	private transient volatile Throwable error;
+	private transient Chunk current;
+	private transient int position;
+
+	/**
+	 * Creates a stream reading ahead from the given source using the given
+	 * number of buffers and starts the reader thread.
+	 * 
+	 * @param source
+	 *            stream to read from, closed when this stream is closed
+	 * @param bufferCount
+	 *            number of buffers in the ring
+	 * @param bufferSize
+	 *            size of each buffer
+	 */
+	BufferRing(final InputStream source, final int bufferCount,
+			final int bufferSize) {
+		super();
+
+		this.source = source;
+		this.free = new ArrayBlockingQueue<Chunk>(bufferCount);
+		this.filled = new ArrayBlockingQueue<Chunk>(bufferCount + 1);
+		for (int i = 0; i < bufferCount; i++) {
+			this.free.add(new Chunk(bufferSize));
+		}
+
+		this.reader = new Thread("BufferRing") {
+			@Override
+			public void run() {
+				BufferRing.this.fill();
+			}
+		};
+		this.reader.start();
+	}
+
+	private void fill() {
+		try {
+			while (true) {
+				final Chunk chunk = this.free.take();
+				final int count = this.source.read(chunk.data);
+				if (count == -1) {
+					break;
+				}
+				chunk.length = count;
+				this.filled.put(chunk);
+			}
+		} catch (InterruptedException e) {
+			// closed by the consumer
+		} catch (Throwable e) {
+			this.error = e;
+		} finally {
+			// the ring holds at most one more element than there are buffers
+			this.filled.offer(END);
+		}
+	}
+
+	private boolean nextChunk() throws IOException {
+		if (this.current != null && this.position < this.current.length) {
+			return true;
+		}
+		if (this.current == END) {
+			return false;
+		}
+
+		if (this.current != null) {
+			this.free.add(this.current);
+		}
+		try {
+			this.current = this.filled.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		this.position = 0;
+
+		if (this.current == END) {
+			final Throwable cause = this.error;
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause != null) {
+				final IOException failure = new IOException(
+						"cannot read ahead");
+				failure.initCause(cause);
+				throw failure;
+			}
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return this.nextChunk() ? this.current.data[this.position++] & 0xff
+				: -1;
+	}
+
+	@Override
+	public int read(final byte[] buffer, final int offset, final int length)
+			throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if (!this.nextChunk()) {
+			return -1;
+		}
+
+		final int count = Math.min(length, this.current.length
+				- this.position);
+		System.arraycopy(this.current.data, this.position, buffer, offset,
+				count);
+		this.position += count;
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return this.current == null || this.current == END ? 0
+				: this.current.length - this.position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// closing the source also stops a reader blocked on a connection
+		this.reader.interrupt();
+		this.source.close();
+		try {
+			this.reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
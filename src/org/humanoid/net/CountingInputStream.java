@@ -0,0 +1,77 @@
+package org.humanoid.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that counts the bytes read from it and optionally measures
+ * the time spent waiting for them.
+ */
+final class CountingInputStream extends FilterInputStream {
+
+	private final transient boolean timed;
+	private transient long count;
+	private transient long readTime;
+
+	CountingInputStream(final InputStream input) {
+		this(input, false);
+	}
+
+	CountingInputStream(final InputStream input, final boolean timed) {
+		super(input);
+		this.timed = timed;
+	}
+
+	long getCount() {
+		return this.count;
+	}
+
+	/**
+	 * Returns the nanoseconds spent in read calls if this stream is timed.
+	 * 
+	 * @return time spent reading
+	 */
+	long getReadTime() {
+		return this.readTime;
+	}
+
+	@Override
+	public int read() throws IOException {
+		final long start = this.timed ? System.nanoTime() : 0;
+		final int b = super.read();
+		if (this.timed) {
+			this.readTime += System.nanoTime() - start;
+		}
+		if (b != -1) {
+			this.count++;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(final byte[] buffer, final int offset, final int length)
+			throws IOException {
+		final long start = this.timed ? System.nanoTime() : 0;
+		final int read = super.read(buffer, offset, length);
+		if (this.timed) {
+			this.readTime += System.nanoTime() - start;
+		}
+		if (read > 0) {
+			this.count += read;
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(final long n) throws IOException {
+		final long skipped = super.skip(n);
+		this.count += skipped;
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
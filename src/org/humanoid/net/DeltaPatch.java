@@ -0,0 +1,153 @@
+package org.humanoid.net;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * <p>
+ * Binary patch that reconstructs a new version of a file from an old version
+ * and the bytes that changed.
+ * </p>
+ * 
+ * <p>
+ * A patch starts with a header consisting of the magic number
+ * {@code 0x48445031} ("HDP1"), the length of the old file as long, the
+ * length of the new file as long and the 32 byte SHA-256 digest of the new
+ * file. It is followed by a sequence of operations, each starting with a
+ * byte: {@code 0} followed by an offset as long and a length as int copies
+ * bytes of the old file, {@code 1} followed by a length as int and as many
+ * bytes inserts the given bytes, and {@code 2} ends the patch. Patches can
+ * be generated by comparing block hashes of both versions as done by rsync.
+ * </p>
+ * 
+ * <p>
+ * Operations are applied one at a time while the patch is read, so only a
+ * buffer of fixed size is kept in memory regardless of the size of the
+ * files.
+ * </p>
+ */
+final class DeltaPatch {
+	private static final int MAGIC = 0x48445031; // "HDP1"
+	private static final int DIGEST_LENGTH = 32;
+	private static final int COPY = 0;
+	private static final int INSERT = 1;
+	private static final int END = 2;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final transient DataInputStream patch;
+	private final transient RandomAccessFile source;
+	private final transient long sourceLength;
+	private final transient long targetLength;
+	private final transient FileDigest targetDigest;
+	private final transient byte[] buffer;
+
+	private transient boolean finished;
+
+	/**
+	 * Reads the header of the given patch and opens the old file it is
+	 * applied to.
+	 * 
+	 * @param input
+	 *            stream of the patch
+	 * @param source
+	 *            old version of the file
+	 * @throws IOException
+	 *             if the patch is invalid or does not apply to the old file
+	 */
+	DeltaPatch(final InputStream input, final File source) throws IOException {
+		this.patch = new DataInputStream(input);
+		if (this.patch.readInt() != MAGIC) {
+			throw new IOException("invalid patch");
+		}
+		this.sourceLength = this.patch.readLong();
+		this.targetLength = this.patch.readLong();
+		final byte[] digest = new byte[DIGEST_LENGTH];
+		this.patch.readFully(digest);
+		this.targetDigest = FileDigest.sha256(digest);
+
+		if (this.sourceLength != source.length()) {
+			throw new IOException("patch does not apply to " + source);
+		}
+		this.source = new RandomAccessFile(source, "r");
+		this.buffer = new byte[BUFFER_SIZE];
+	}
+
+	long getTargetLength() {
+		return this.targetLength;
+	}
+
+	FileDigest getTargetDigest() {
+		return this.targetDigest;
+	}
+
+	/**
+	 * Applies the next operation of this patch.
+	 * 
+	 * @param target
+	 *            sink writing the new version of the file
+	 * @return false if the end of the patch was reached
+	 * @throws IOException
+	 *             if the patch is invalid or a file cannot be accessed
+	 */
+	boolean applyNext(final FileSink target) throws IOException {
+		if (this.finished) {
+			return false;
+		}
+
+		final int operation = this.patch.read();
+		if (operation == END) {
+			this.finished = true;
+			return false;
+		} else if (operation == COPY) {
+			final long offset = this.patch.readLong();
+			final int length = this.patch.readInt();
+			this.checkLength(target, length);
+			if (offset < 0 || offset + length > this.sourceLength) {
+				throw new IOException("invalid copy at " + offset);
+			}
+			this.source.seek(offset);
+			int remaining = length;
+			while (remaining > 0) {
+				final int count = Math.min(remaining, this.buffer.length);
+				this.source.readFully(this.buffer, 0, count);
+				target.write(this.buffer, 0, count);
+				remaining -= count;
+			}
+		} else if (operation == INSERT) {
+			final int length = this.patch.readInt();
+			this.checkLength(target, length);
+			int remaining = length;
+			while (remaining > 0) {
+				final int count = Math.min(remaining, this.buffer.length);
+				this.patch.readFully(this.buffer, 0, count);
+				target.write(this.buffer, 0, count);
+				remaining -= count;
+			}
+		} else {
+			throw new IOException("invalid operation " + operation);
+		}
+		return true;
+	}
+
+	private void checkLength(final FileSink target, final int length)
+			throws IOException {
+		if (length < 0 || target.getPosition() + length > this.targetLength) {
+			throw new IOException("patch exceeds " + this.targetLength
+					+ " bytes");
+		}
+	}
+
+	/**
+	 * Closes the patch and the old file.
+	 */
+	void close() {
+		try {
+			this.source.close();
+			this.patch.close();
+		} catch (IOException e) {
+		}
+	}
+}
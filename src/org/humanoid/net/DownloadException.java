@@ -0,0 +1,22 @@
+package org.humanoid.net;
+
+import java.io.IOException;
+
+/**
+ * Signals that a download failed for the given reason.
+ */
+public class DownloadException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final transient DownloadTask.Failure failure;
+
+	public DownloadException(final DownloadTask.Failure failure,
+			final String message) {
+		super(message);
+		this.failure = failure;
+	}
+
+	public DownloadTask.Failure getFailure() {
+		return this.failure;
+	}
+}
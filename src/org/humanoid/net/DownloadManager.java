@@ -0,0 +1,533 @@
+package org.humanoid.net;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.os.AsyncTask;
+import android.os.Build;
+
+import com.actionbarsherlock.app.ActionBar;
+
+/**
+ * <p>
+ * Queue of downloads that runs a limited number of them concurrently.
+ * </p>
+ * 
+ * <p>
+ * Downloads are identified by their URL and target file, so requesting a
+ * download that is already queued or running only registers another callback
+ * with it. Queued downloads are started in the order of their priority and,
+ * among downloads with the same priority, in the order they were requested.
+ * Running downloads are not interrupted when a download with a higher
+ * priority is requested. Methods of this class are meant to be called on the
+ * UI thread, which is also the thread notifying the callbacks.
+ * </p>
+ */
+public final class DownloadManager {
+	private static final int DEFAULT_MAX_CONCURRENT = 2;
+	private static DownloadManager instance = null;
+
+	/**
+	 * Returns the download manager of this process, creating it when it is
+	 * requested for the first time.
+	 * 
+	 * @return download manager
+	 */
+	public static synchronized DownloadManager getInstance() {
+		if (instance == null) {
+			instance = new DownloadManager(DEFAULT_MAX_CONCURRENT);
+		}
+		return instance;
+	}
+
+	/**
+	 * Priorities of downloads, in decreasing order.
+	 */
+	public enum Priority {
+		/** The user waits for the downloaded file. */
+		USER_VISIBLE,
+		/** The file is downloaded in advance. */
+		PREFETCH
+	}
+
+	/**
+	 * Requested download notifying all callbacks registered with it.
+	 */
+	public static final class Job implements DownloadTask.FailureCallback,
+			DownloadTask.ProgressCallback, Comparable<Job> {
+		private final transient DownloadManager manager;
+		private final transient File outFile;
+		private final transient String url;
+		private final transient long totalBytes;
+		private final transient boolean unzipInput;
+		private final transient int segmentCount;
+		private final transient String patchUrl;
+		private final transient FileDigest digest;
+		private final transient long sequence;
+		private final transient List<DownloadTask.Callback> callbacks;
+
+		private transient Priority priority;
+		private transient NetworkScheduler.Requirement requirement;
+		private transient boolean waitingForNetwork;
+		private transient DownloadTask task;
+		private transient ActionBar actionBar;
+		private transient int titleId;
+		private transient int progress;
+		private transient long bytesPerSecond = -1;
+		private transient long remainingMillis = -1;
+
+		Job(final DownloadManager manager, final File outFile,
+				final String url, final String patchUrl, final long totalBytes,
+				final boolean unzipInput, final int segmentCount,
+				final FileDigest digest, final Priority priority,
+				final long sequence) {
+			this.manager = manager;
+			this.outFile = outFile;
+			this.url = url;
+			this.patchUrl = patchUrl;
+			this.totalBytes = totalBytes;
+			this.unzipInput = unzipInput;
+			this.segmentCount = segmentCount;
+			this.digest = digest;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.callbacks = new CopyOnWriteArrayList<DownloadTask.Callback>();
+		}
+
+		public File getOutFile() {
+			return this.outFile;
+		}
+
+		public String getUrl() {
+			return this.url;
+		}
+
+		public Priority getPriority() {
+			return this.priority;
+		}
+
+		public boolean isRunning() {
+			return this.task != null;
+		}
+
+		/**
+		 * Checks whether this download is queued until a suitable network is
+		 * available, either because it was paused after the network was lost
+		 * or because it waits for an unmetered network.
+		 * 
+		 * @return whether this download waits for a network
+		 */
+		public boolean isWaitingForNetwork() {
+			return this.waitingForNetwork;
+		}
+
+		public NetworkScheduler.Requirement getRequirement() {
+			return this.requirement;
+		}
+
+		/**
+		 * Returns the progress of this download as last reported to its
+		 * callbacks.
+		 * 
+		 * @return progress between {@code Window.PROGRESS_START} and
+		 *         {@code Window.PROGRESS_END}
+		 */
+		public int getProgress() {
+			return this.progress;
+		}
+
+		/**
+		 * Returns the estimated bandwidth of this download.
+		 * 
+		 * @return bytes per second or -1 if it is not known
+		 */
+		public long getBytesPerSecond() {
+			return this.bytesPerSecond;
+		}
+
+		/**
+		 * Returns the estimated time until this download is complete.
+		 * 
+		 * @return milliseconds or -1 if it is not known
+		 */
+		public long getRemainingMillis() {
+			return this.remainingMillis;
+		}
+
+		public void addCallback(final DownloadTask.Callback callback) {
+			if (callback != null && !this.callbacks.contains(callback)) {
+				this.callbacks.add(callback);
+			}
+		}
+
+		public void removeCallback(final DownloadTask.Callback callback) {
+			this.callbacks.remove(callback);
+		}
+
+		/**
+		 * Sets the action bar showing the progress of this download.
+		 * 
+		 * @param actionBar
+		 *            action bar or null to stop showing progress
+		 * @param titleId
+		 *            resource id of the title shown while downloading
+		 */
+		void setActionBar(final ActionBar actionBar, final int titleId) {
+			this.actionBar = actionBar;
+			this.titleId = titleId;
+			if (this.task != null) {
+				this.task.register(this, actionBar);
+			} else if (actionBar != null) {
+				actionBar.setTitle(titleId);
+				actionBar.setSubtitle("");
+			}
+		}
+
+		void start() {
+			this.task = new DownloadTask(this.totalBytes, this.titleId,
+					this.unzipInput);
+			this.task.segmentCount = this.segmentCount;
+			this.task.expectedDigest = this.digest;
+			this.task.patchUrl = this.patchUrl;
+			this.task.register(this, this.actionBar);
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+				this.task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+						this.outFile, this.url);
+			} else {
+				// older platforms execute tasks on a pool anyway
+				this.task.execute(this.outFile, this.url);
+			}
+		}
+
+		@Override
+		public void setDownloadProgress(final int progress) {
+			this.progress = progress;
+			for (DownloadTask.Callback callback : this.callbacks) {
+				callback.setDownloadProgress(progress);
+			}
+		}
+
+		@Override
+		public void setDownloadEstimate(final long bytesPerSecond,
+				final long remainingMillis) {
+			this.bytesPerSecond = bytesPerSecond;
+			this.remainingMillis = remainingMillis;
+			for (DownloadTask.Callback callback : this.callbacks) {
+				if (callback instanceof DownloadTask.ProgressCallback) {
+					((DownloadTask.ProgressCallback) callback)
+							.setDownloadEstimate(bytesPerSecond,
+									remainingMillis);
+				}
+			}
+		}
+
+		@Override
+		public void processDownload(final File file) {
+			this.manager.finished(this);
+			for (DownloadTask.Callback callback : this.callbacks) {
+				callback.processDownload(file);
+			}
+		}
+
+		@Override
+		public void processDownloadFailure(final File file,
+				final DownloadTask.Failure failure) {
+			if (this.manager.pauseIfOffline(this, failure)) {
+				return;
+			}
+			this.manager.finished(this);
+			for (DownloadTask.Callback callback : this.callbacks) {
+				if (callback instanceof DownloadTask.FailureCallback) {
+					((DownloadTask.FailureCallback) callback)
+							.processDownloadFailure(file, failure);
+				}
+			}
+		}
+
+		@Override
+		public int compareTo(final Job other) {
+			final int order = this.priority.compareTo(other.priority);
+			return order == 0 ? Long.valueOf(this.sequence).compareTo(
+					other.sequence) : order;
+		}
+	}
+
+	private final transient Map<String, Job> jobs;
+	private final transient PriorityQueue<Job> queue;
+
+	private final transient NetworkScheduler.Listener networkListener;
+
+	private transient int maxConcurrent;
+	private transient int running;
+	private transient long sequence;
+	private transient NetworkScheduler scheduler;
+	private transient long unmeteredThreshold;
+
+	private DownloadManager(final int maxConcurrent) {
+		this.jobs = new HashMap<String, Job>();
+		this.queue = new PriorityQueue<Job>();
+		this.maxConcurrent = maxConcurrent;
+		this.unmeteredThreshold = Long.MAX_VALUE;
+		this.networkListener = new NetworkScheduler.Listener() {
+			@Override
+			public void onNetworkClassChange(
+					final NetworkScheduler.NetworkClass networkClass) {
+				DownloadManager.this.networkChanged(networkClass);
+			}
+		};
+	}
+
+	/**
+	 * Makes downloads react to connectivity changes reported by the given
+	 * scheduler. Running downloads are paused when the network no longer
+	 * meets their requirement and resumed from where they stopped when it
+	 * does again. Downloads failing while the network is lost are paused
+	 * rather than failed.
+	 * 
+	 * @param scheduler
+	 *            registered network scheduler or null to ignore connectivity
+	 */
+	public synchronized void setNetworkScheduler(
+			final NetworkScheduler scheduler) {
+		if (this.scheduler != null) {
+			this.scheduler.removeListener(this.networkListener);
+		}
+		this.scheduler = scheduler;
+		if (scheduler != null) {
+			scheduler.addListener(this.networkListener);
+			this.networkChanged(scheduler.getNetworkClass());
+		}
+	}
+
+	/**
+	 * Sets the size from which downloads only run on unmetered networks.
+	 * Takes effect only if a network scheduler is set and applies to
+	 * downloads requested afterwards.
+	 * 
+	 * @param bytes
+	 *            expected size of the target file, {@link Long#MAX_VALUE} to
+	 *            run all downloads on any network
+	 */
+	public synchronized void setUnmeteredThreshold(final long bytes) {
+		this.unmeteredThreshold = bytes;
+	}
+
+	/**
+	 * Sets the maximum number of downloads that run concurrently. Queued
+	 * downloads are started if the limit is raised.
+	 * 
+	 * @param maxConcurrent
+	 *            maximum number of concurrent downloads, at least one
+	 */
+	public synchronized void setMaxConcurrent(final int maxConcurrent) {
+		this.maxConcurrent = Math.max(1, maxConcurrent);
+		this.startQueued();
+	}
+
+	/**
+	 * Requests a download. If the target file already exists, the callback
+	 * is notified immediately. If the same download was already requested,
+	 * the callback is registered with the existing download, whose priority
+	 * is raised if necessary.
+	 * 
+	 * @param outFile
+	 *            target file of the download
+	 * @param url
+	 *            URL of the downloaded file
+	 * @param totalBytes
+	 *            expected size of the target file, used to compute progress
+	 * @param unzipInput
+	 *            whether the downloaded file is gzipped
+	 * @param segmentCount
+	 *            number of concurrent connections used for the download if
+	 *            the server supports range requests
+	 * @param priority
+	 *            priority of the download
+	 * @param callback
+	 *            callback notified about the download, may be null
+	 * @return requested download or null if the target file already exists
+	 */
+	public Job enqueue(final File outFile, final String url,
+			final long totalBytes, final boolean unzipInput,
+			final int segmentCount, final Priority priority,
+			final DownloadTask.Callback callback) {
+		return this.enqueue(outFile, url, null, totalBytes, unzipInput,
+				segmentCount, null, priority, callback);
+	}
+
+	/**
+	 * Requests a download whose target file is only moved into place if it
+	 * has the given digest. Otherwise, callbacks implementing
+	 * {@link DownloadTask.FailureCallback} are notified about a
+	 * {@link DownloadTask.Failure#CHECKSUM} failure.
+	 * 
+	 * <p>
+	 * If a patch URL is given and the target file exists, the target file is
+	 * updated by applying the patch at the patch URL to it. If the patch
+	 * cannot be applied or the patched file does not have the expected
+	 * digest, the target file is downloaded from the URL instead.
+	 * </p>
+	 * 
+	 * @param patchUrl
+	 *            URL of a {@link DeltaPatch} updating an existing target file
+	 *            or null if the existing target file is up to date
+	 * @param digest
+	 *            expected digest of the target file or null if it is not
+	 *            verified
+	 * @see #enqueue(File, String, long, boolean, int, Priority,
+	 *      DownloadTask.Callback)
+	 */
+	public synchronized Job enqueue(final File outFile, final String url,
+			final String patchUrl, final long totalBytes,
+			final boolean unzipInput, final int segmentCount,
+			final FileDigest digest, final Priority priority,
+			final DownloadTask.Callback callback) {
+		final String key = outFile.getPath() + ' ' + url;
+		Job job = this.jobs.get(key);
+
+		if (job == null) {
+			if (outFile.exists() && patchUrl == null) {
+				if (callback != null) {
+					callback.processDownload(outFile);
+				}
+				return null;
+			}
+
+			job = new Job(this, outFile, url, patchUrl, totalBytes,
+					unzipInput, segmentCount, digest, priority,
+					this.sequence++);
+			job.requirement = totalBytes >= this.unmeteredThreshold
+					? NetworkScheduler.Requirement.UNMETERED
+					: NetworkScheduler.Requirement.CONNECTED;
+			this.jobs.put(key, job);
+			this.queue.add(job);
+		} else if (priority.compareTo(job.priority) < 0) {
+			if (this.queue.remove(job)) {
+				job.priority = priority;
+				this.queue.add(job);
+			} else {
+				job.priority = priority;
+			}
+		}
+
+		job.addCallback(callback);
+		this.startQueued();
+		return job;
+	}
+
+	/**
+	 * Returns the download of the given URL to the given file if it is queued
+	 * or running.
+	 * 
+	 * @return requested download or null
+	 */
+	public synchronized Job getJob(final File outFile, final String url) {
+		return this.jobs.get(outFile.getPath() + ' ' + url);
+	}
+
+	/**
+	 * Removes a queued download. Running downloads are completed but their
+	 * callbacks are no longer notified.
+	 * 
+	 * @param job
+	 *            download to cancel
+	 */
+	public synchronized void cancel(final Job job) {
+		job.callbacks.clear();
+		job.setActionBar(null, 0);
+		if (this.queue.remove(job)) {
+			this.jobs.values().remove(job);
+		}
+	}
+
+	/**
+	 * Removes the given callback from all downloads, for example when the
+	 * activity implementing it is destroyed.
+	 * 
+	 * @param callback
+	 *            callback to remove
+	 */
+	public synchronized void unregister(final DownloadTask.Callback callback) {
+		for (Job job : this.jobs.values()) {
+			job.removeCallback(callback);
+		}
+	}
+
+	/**
+	 * Removes all callbacks and action bars from all downloads.
+	 */
+	synchronized void unregisterAll() {
+		for (Job job : this.jobs.values()) {
+			job.callbacks.clear();
+			job.setActionBar(null, 0);
+		}
+	}
+
+	private synchronized void finished(final Job job) {
+		this.jobs.values().remove(job);
+		this.running--;
+		this.startQueued();
+	}
+
+	/**
+	 * Queues a download again if it was paused or failed because the network
+	 * was lost. It is started again after connectivity has settled.
+	 * 
+	 * @return whether the download was queued again
+	 */
+	private synchronized boolean pauseIfOffline(final Job job,
+			final DownloadTask.Failure failure) {
+		final boolean offline = this.scheduler != null
+				&& failure == DownloadTask.Failure.NETWORK
+				&& !job.requirement.isMetBy(NetworkScheduler
+						.classify(this.scheduler.getActiveNetworkInfo()));
+		if (!job.task.isPaused() && !offline) {
+			return false;
+		}
+
+		job.task = null;
+		// a paused download may be resumed once the network has settled
+		job.waitingForNetwork = offline || this.scheduler != null
+				&& !job.requirement.isMetBy(this.scheduler.getNetworkClass());
+		this.running--;
+		this.queue.add(job);
+		this.startQueued();
+		return true;
+	}
+
+	private synchronized void networkChanged(
+			final NetworkScheduler.NetworkClass networkClass) {
+		for (Job job : this.jobs.values()) {
+			if (job.task != null && !job.requirement.isMetBy(networkClass)) {
+				job.task.pause();
+			}
+			job.waitingForNetwork = !job.requirement.isMetBy(networkClass);
+		}
+		this.startQueued();
+	}
+
+	private boolean canStart(final Job job) {
+		return this.scheduler == null || !job.waitingForNetwork
+				&& job.requirement.isMetBy(this.scheduler.getNetworkClass());
+	}
+
+	private void startQueued() {
+		final List<Job> waiting = new ArrayList<Job>();
+		while (this.running < this.maxConcurrent && !this.queue.isEmpty()) {
+			final Job job = this.queue.poll();
+			if (this.canStart(job)) {
+				this.running++;
+				job.start();
+			} else {
+				job.waitingForNetwork = true;
+				waiting.add(job);
+			}
+		}
+		this.queue.addAll(waiting);
+	}
+}
@@ -2,63 +2,67 @@ package org.humanoid.net;
 
 import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.zip.GZIPInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.actionbarsherlock.app.ActionBar;
 import com.actionbarsherlock.view.Window;
 
 public class DownloadTask extends AsyncTask<Object, Long, File> {
+	private static final long SEGMENT_POLL_INTERVAL = 100; // ms
+	private static final int PIPELINE_BUFFER_SIZE = 64 * 1024;
 
-	private static DownloadTask task;
+	/**
+	 * Removes all callbacks and action bars from downloads requested using
+	 * {@link #process}.
+	 * 
+	 * @deprecated use {@link DownloadManager#unregister(Callback)} to remove
+	 *             a single callback
+	 */
+	@Deprecated
+	public static void unregister() {
+		DownloadManager.getInstance().unregisterAll();
+	}
 
-	private synchronized static DownloadTask ensureInstance(
+	public static void process(final Callback callback,
+			final ActionBar actionBar, final File outFile, final String url,
 			final long totalBytes, final int downloadTitleId,
 			final boolean unzipInput) {
-		if (task == null) {
-			task = new DownloadTask(totalBytes, downloadTitleId, unzipInput);
-		}
-
-		return task;
-	}
-
-	public static void unregister() {
-		if (task != null) {
-			task.callback = null;
-			task.actionBar = null;
-		}
+		process(callback, actionBar, outFile, url, totalBytes,
+				downloadTitleId, unzipInput, 1);
 	}
 
+	/**
+	 * Processes a download that is split into the given number of segments
+	 * downloaded over concurrent connections if the server supports range
+	 * requests. Otherwise, the file is downloaded as a single stream.
+	 * Downloads are run by the {@link DownloadManager} with priority
+	 * {@link DownloadManager.Priority#USER_VISIBLE} and a failed download is
+	 * resumed when it is processed again.
+	 */
 	public static void process(final Callback callback,
 			final ActionBar actionBar, final File outFile, final String url,
 			final long totalBytes, final int downloadTitleId,
-			final boolean unzipInput) {
+			final boolean unzipInput, final int segmentCount) {
+		final DownloadManager.Job job = DownloadManager.getInstance().enqueue(
+				outFile, url, totalBytes, unzipInput, segmentCount,
+				DownloadManager.Priority.USER_VISIBLE, callback);
 
-		ensureInstance(totalBytes, downloadTitleId, unzipInput);
-		task.register(callback, actionBar);
-
-		switch (task.getStatus()) {
-		case FINISHED:
-			task.onPostExecute(task.downloadedFile);
-			break;
-		case RUNNING:
-			task.actionBar.setTitle(task.downloadTitleId);
-			task.actionBar.setSubtitle("");
-			break;
-		default:
-			if (outFile.exists()) {
-				task.onPostExecute(outFile);
-			} else {
-				task.actionBar.setTitle(task.downloadTitleId);
-				task.actionBar.setSubtitle("");
-				task.execute(outFile, url);
-			}
+		if (job != null) {
+			job.setActionBar(actionBar, downloadTitleId);
 		}
 	}
 
@@ -68,6 +72,78 @@ public class DownloadTask extends AsyncTask<Object, Long, File> {
 		void processDownload(File file);
 	}
 
+	/**
+	 * Decoder of downloaded bytes. Codecs of a download are chained, each one
+	 * decoding the output of the previous one.
+	 */
+	public interface Codec {
+
+		/**
+		 * Returns a stream of the decoded bytes of the given stream.
+		 * 
+		 * @param input
+		 *            stream to decode, closed when the returned stream is
+		 *            closed
+		 * @return decoded stream
+		 * @throws IOException
+		 *             if the stream cannot be decoded
+		 */
+		InputStream decode(InputStream input) throws IOException;
+	}
+
+	/**
+	 * Reasons for a failed download.
+	 */
+	public enum Failure {
+		/** The connection failed or the server sent an unexpected response. */
+		NETWORK,
+		/** Fewer bytes than announced by the server were received. */
+		INCOMPLETE,
+		/** There is not enough storage for the downloaded file. */
+		STORAGE,
+		/** The downloaded file does not have the expected digest. */
+		CHECKSUM,
+		/** The file changed on the server, so received bytes are discarded. */
+		CHANGED
+	}
+
+	/**
+	 * Callback that is also notified about failed downloads. Plain callbacks
+	 * are only notified about successful downloads.
+	 */
+	public interface FailureCallback extends Callback {
+
+		/**
+		 * Called if a download failed. Received bytes are kept so that the
+		 * download is resumed when it is processed again.
+		 * 
+		 * @param file
+		 *            file that could not be downloaded
+		 * @param failure
+		 *            reason for the failure
+		 */
+		void processDownloadFailure(File file, Failure failure);
+	}
+
+	/**
+	 * Callback that is also notified about the estimated bandwidth and
+	 * remaining time of a download.
+	 */
+	public interface ProgressCallback extends Callback {
+
+		/**
+		 * Called together with {@link #setDownloadProgress(int)}. Estimates
+		 * are smoothed over the last seconds of the download.
+		 * 
+		 * @param bytesPerSecond
+		 *            estimated bandwidth or -1 if it is not known yet
+		 * @param remainingMillis
+		 *            estimated time until the download is complete or -1 if
+		 *            it is not known yet
+		 */
+		void setDownloadEstimate(long bytesPerSecond, long remainingMillis);
+	}
+
 	private transient final long totalBytes;
 	private transient final int downloadTitleId;
 	private transient final boolean unzipInput;
@@ -75,10 +151,22 @@ public class DownloadTask extends AsyncTask<Object, Long, File> {
 	private transient ActionBar actionBar;
 	private transient Callback callback;
 
-	private transient File downloadedFile;
+	private transient File outFile;
+	private transient Failure failure;
+	private transient ProgressThrottle throttle;
+	private transient volatile HttpURLConnection connection;
+	private transient volatile SegmentedDownload segments;
+	private transient volatile boolean paused;
 	private transient float loadedMB;
 
 	protected transient int bufferSize = 1024 * 1024; // 1 MB
+	protected transient int segmentCount = 1;
+	protected transient int pipelineBuffers = 8; // of 64 KB, 0 disables
+	protected transient FileDigest expectedDigest = null;
+	protected transient String patchUrl = null;
+	protected transient int progressRate = 4; // updates per second
+	protected transient int progressStep = 1; // percent
+	protected transient final List<Codec> codecs = new ArrayList<Codec>();
 
 	public DownloadTask(final long totalBytes, final int downloadTitleId,
 			final boolean unzipInput) {
@@ -87,65 +175,402 @@ public class DownloadTask extends AsyncTask<Object, Long, File> {
 		this.totalBytes = totalBytes;
 		this.downloadTitleId = downloadTitleId;
 		this.unzipInput = unzipInput;
+		if (unzipInput) {
+			this.codecs.add(new GzipCodec(Runtime.getRuntime()
+					.availableProcessors()));
+		}
 
 		this.loadedMB = 0;
 	}
 
-	private void register(final Callback callback, final ActionBar actionBar) {
+	/**
+	 * Stops the download by closing its connections. Received bytes are kept,
+	 * so a new task resumes the download. The task finishes with a failure
+	 * unless it was already complete.
+	 */
+	void pause() {
+		this.paused = true;
+		final HttpURLConnection http = this.connection;
+		if (http != null) {
+			http.disconnect();
+		}
+		final SegmentedDownload segmented = this.segments;
+		if (segmented != null) {
+			segmented.cancel();
+		}
+	}
+
+	/**
+	 * Closes the given connection if the download was paused before the
+	 * connection was published, because the pause could not close it.
+	 */
+	private void checkPaused(final HttpURLConnection http) throws IOException {
+		if (this.paused) {
+			http.disconnect();
+			throw new IOException("download paused");
+		}
+	}
+
+	boolean isPaused() {
+		return this.paused;
+	}
+
+	void register(final Callback callback, final ActionBar actionBar) {
 		this.callback = callback;
 		this.actionBar = actionBar;
+		this.loadedMB = 0;
+
+		if (actionBar != null) {
+			actionBar.setTitle(this.downloadTitleId);
+			actionBar.setSubtitle("");
+		}
 	}
 
+	/**
+	 * Decodes the received bytes by passing them through all codecs in order.
+	 * Unzipped downloads start with a gzip codec, uncompressed input is read
+	 * in large blocks and needs no buffer.
+	 */
 	protected InputStream transformInput(final InputStream input)
 			throws IOException {
-		final InputStream stream = new BufferedInputStream(input);
+		InputStream stream = input;
+		for (Codec codec : this.codecs) {
+			stream = codec.decode(stream);
+		}
+		return stream;
+	}
 
-		return this.unzipInput ? new GZIPInputStream(stream) : stream;
+	/**
+	 * Reads compressed input ahead on a separate thread so that receiving
+	 * overlaps with inflating and writing. Other input is read directly.
+	 */
+	private InputStream pipeline(final InputStream input) {
+		return this.unzipInput && this.pipelineBuffers > 0 ? new BufferRing(
+				input, this.pipelineBuffers, PIPELINE_BUFFER_SIZE) : input;
 	}
 
 	@Override
 	protected File doInBackground(final Object... params) {
-		final File outFile = (File) params[0];
-		InputStream input = null;
-		FileOutputStream output = null;
+		this.outFile = (File) params[0];
+		this.throttle = new ProgressThrottle(this.totalBytes,
+				this.progressRate, this.progressStep);
+
+		if (this.patchUrl != null && this.outFile.exists()) {
+			try {
+				this.patch();
+				return this.outFile;
+			} catch (IOException e) {
+				if (this.paused) {
+					// the manager resumes the patch when the network is back
+					this.failure = Failure.NETWORK;
+					return null;
+				}
+				Log.w("DownloadTask", "patch failed, downloading " + params[1],
+						e);
+				this.throttle = new ProgressThrottle(this.totalBytes,
+						this.progressRate, this.progressStep);
+			}
+		}
+
+		if (this.paused) {
+			this.failure = Failure.NETWORK;
+			return null;
+		}
+
+		final PartialDownload partial = new PartialDownload(this.outFile,
+				(String) params[1]);
+		File result = null;
 		try {
-			input = transformInput(new URL((String) params[1]).openStream());
-			output = new FileOutputStream(outFile);
-			final byte[] buffer = new byte[this.bufferSize]; // 1 MB
-			long current = 0;
-			this.publishProgress(current);
+			this.download(partial);
+			result = this.outFile;
+		} catch (DownloadException e) {
+			Log.e("DownloadTask", "doInBackground", e);
+			this.failure = e.getFailure();
+		} catch (IOException e) {
+			Log.e("DownloadTask", "doInBackground", e);
+			this.failure = Failure.NETWORK;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Updates the existing target file by applying the patch at the patch
+	 * URL. The patched file replaces the target file only if it has the
+	 * expected digest, which is the digest given in the patch unless an
+	 * expected digest was set explicitly.
+	 */
+	private void patch() throws IOException {
+		final HttpURLConnection http = (HttpURLConnection) new URL(
+				this.patchUrl).openConnection();
+		this.connection = http;
+		this.checkPaused(http);
+		if (http.getResponseCode() != HttpURLConnection.HTTP_OK) {
+			http.disconnect();
+			throw new IOException("unexpected response "
+					+ http.getResponseCode());
+		}
+
+		final InputStream input = new BufferedInputStream(
+				http.getInputStream());
+		final DeltaPatch patch;
+		try {
+			patch = new DeltaPatch(input, this.outFile);
+		} catch (IOException e) {
+			input.close();
+			throw e;
+		}
+
+		final File patched = new File(this.outFile.getPath() + ".patched");
+		FileSink output = null;
+		try {
+			output = new FileSink(patched, 0, patch.getTargetLength(), true);
+			output.setDigest(this.expectedDigest == null ? patch
+					.getTargetDigest() : this.expectedDigest);
+			this.reportProgress(0);
+			while (patch.applyNext(output)) {
+				this.reportProgress(output.getPosition());
+			}
+			output.finish();
+
+			if (output.getPosition() != patch.getTargetLength()) {
+				throw new DownloadException(Failure.INCOMPLETE, "patched "
+						+ output.getPosition() + " of "
+						+ patch.getTargetLength() + " bytes");
+			}
+			if (!output.matchesDigest()) {
+				throw new DownloadException(Failure.CHECKSUM, patched
+						+ " does not match patch");
+			}
+
+			PartialDownload.replace(patched, this.outFile);
+		} finally {
+			patch.close();
+			if (output != null) {
+				output.close();
+			}
+			patched.delete();
+		}
+	}
+
+	/**
+	 * Downloads the remaining bytes of the given partial download and moves
+	 * the complete file into place. The download is split into segments if
+	 * requested and supported by the server.
+	 */
+	private void download(final PartialDownload partial) throws IOException {
+		if (!partial.isSegmented()) {
+			final HttpURLConnection http = partial.openConnection();
+			this.connection = http;
+			this.checkPaused(http);
+			final InputStream remaining = partial.getRemainingInput(http);
+			if (this.segmentCount <= 1 || !partial.canSegment(http)) {
+				this.downloadStream(partial, remaining);
+				return;
+			}
+
+			remaining.close();
+			http.disconnect();
+			partial.segment(this.segmentCount);
+		}
+
+		this.downloadSegments(partial);
+	}
+
+	/**
+	 * Downloads the remaining bytes as a single stream. Unzipped files are
+	 * inflated again from the start because the state of the inflater cannot
+	 * be resumed. Other files are transferred to the partial file without
+	 * intermediate streams.
+	 */
+	private void downloadStream(final PartialDownload partial,
+			final InputStream remaining) throws IOException {
+		final File inflated = new File(this.outFile.getPath() + ".tmp");
+		InputStream input = remaining;
+		OutputStream part = null;
+		FileSink output = null;
+		try {
+			final File complete;
+			if (this.unzipInput) {
+				complete = inflated;
+				FileSink.ensureSpace(partial.getPartFile(),
+						partial.getLength() - partial.getOffset());
+				output = this.openOutput(inflated, 0, this.totalBytes, true);
+				part = partial.openPart();
+				final InputStream received = new TeeInputStream(remaining,
+						part);
+				input = transformInput(this.pipeline(partial.getOffset() == 0
+						? received : new SequenceInputStream(
+								new FileInputStream(partial.getPartFile()),
+								received)));
+				this.copy(input, output);
+				part.close();
+			} else {
+				complete = partial.getPartFile();
+				output = this.openOutput(complete, partial.getOffset(),
+						partial.getLength(), false);
+				input = transformInput(remaining);
+				this.transfer(input, output);
+			}
+
+			output.finish();
+			partial.verifyLength();
+			this.verifyDigest(partial, output.matchesDigest());
+			partial.commit(complete);
+		} finally {
+			try {
+				input.close();
+				if (part != null) {
+					part.close();
+				}
+			} catch (IOException e) {
+			}
+			if (output != null) {
+				output.close();
+			}
+			inflated.delete();
+		}
+	}
+
+	/**
+	 * Downloads the remaining segments concurrently. Unzipped files are
+	 * inflated after all segments have been received, progress is estimated
+	 * from the received bytes in the meantime.
+	 */
+	private void downloadSegments(final PartialDownload partial)
+			throws IOException {
+		final SegmentedDownload segments = new SegmentedDownload(partial,
+				this.bufferSize);
+		this.segments = segments;
+		final long length = partial.getLength();
+		segments.start();
+		try {
+			// a pause before the segments were published did not cancel them
+			if (this.paused) {
+				throw new IOException("download paused");
+			}
+			boolean finished;
+			do {
+				finished = segments.await(SEGMENT_POLL_INTERVAL);
+				final long received = segments.getReceived();
+				this.reportProgress(this.unzipInput ? received
+						* this.totalBytes / length : received);
+			} while (!finished);
+		} catch (DownloadException e) {
+			if (e.getFailure() == Failure.CHANGED) {
+				// no segment may write to the partial file while it is reset
+				segments.stop();
+				partial.discard();
+			}
+			throw e;
+		} finally {
+			segments.cancel();
+		}
+		partial.verifyLength();
+
+		if (!this.unzipInput) {
+			// segments are not written in order, so they are digested after
+			this.verifyDigest(partial, this.expectedDigest == null
+					|| this.expectedDigest.matches(partial.getPartFile()));
+			partial.commit(partial.getPartFile());
+			return;
+		}
+
+		final File inflated = new File(this.outFile.getPath() + ".tmp");
+		final FileSink output = this.openOutput(inflated, 0, this.totalBytes,
+				true);
+		final InputStream input = transformInput(this.pipeline(
+				new FileInputStream(partial.getPartFile())));
+		try {
+			final byte[] buffer = new byte[this.bufferSize];
 			int count = input.read(buffer);
 			while (count != -1) {
 				output.write(buffer, 0, count);
-				current += count;
-				this.publishProgress(current);
 				count = input.read(buffer);
 			}
-		} catch (IOException e) {
-			Log.e("DownloadTask", "doInBackground", e);
+			output.finish();
+			this.verifyDigest(partial, output.matchesDigest());
+			partial.commit(inflated);
 		} finally {
+			input.close();
+			output.close();
+			inflated.delete();
+		}
+	}
+
+	private FileSink openOutput(final File file, final long position,
+			final long length, final boolean allocate) throws IOException {
+		final FileSink output = new FileSink(file, position, length, allocate);
+		if (this.expectedDigest != null) {
 			try {
-				if (input != null) {
-					input.close();
-				}
-				if (output != null) {
-					output.close();
-				}
+				output.setDigest(this.expectedDigest);
 			} catch (IOException e) {
+				output.close();
+				throw e;
 			}
 		}
+		return output;
+	}
 
-		return outFile;
+	/**
+	 * Discards the received bytes if the downloaded file does not have the
+	 * expected digest, so that it is downloaded again from the start.
+	 */
+	private void verifyDigest(final PartialDownload partial,
+			final boolean matches) throws DownloadException {
+		if (!matches) {
+			partial.discard();
+			throw new DownloadException(Failure.CHECKSUM, this.outFile
+					+ " does not match " + this.expectedDigest);
+		}
+	}
+
+	private void copy(final InputStream input, final FileSink output)
+			throws IOException {
+		final byte[] buffer = new byte[this.bufferSize]; // 1 MB
+		this.reportProgress(output.getPosition());
+		int count = input.read(buffer);
+		while (count != -1) {
+			output.write(buffer, 0, count);
+			this.reportProgress(output.getPosition());
+			count = input.read(buffer);
+		}
+	}
+
+	private void transfer(final InputStream input, final FileSink output)
+			throws IOException {
+		final ReadableByteChannel source = Channels.newChannel(input);
+		this.reportProgress(output.getPosition());
+		while (output.transferFrom(source) != -1) {
+			this.reportProgress(output.getPosition());
+		}
+	}
+
+	/**
+	 * Publishes the given progress if the throttle lets it pass, so that the
+	 * UI thread is not flooded with updates after small reads.
+	 */
+	private void reportProgress(final long bytes) {
+		if (this.throttle.update(bytes, SystemClock.elapsedRealtime())) {
+			this.publishProgress(bytes, this.throttle.getBytesPerSecond(),
+					this.throttle.getRemainingMillis());
+		}
 	}
 
 	@Override
 	protected void onProgressUpdate(final Long... progress) {
-		if (this.callback != null && this.actionBar != null) {
-			final long loadedBytes = progress[0];
+		final long loadedBytes = progress[0];
+		if (this.callback != null) {
 			final int maxProgress = Window.PROGRESS_END - Window.PROGRESS_START;
 			this.callback
 					.setDownloadProgress((int) ((maxProgress * loadedBytes) / this.totalBytes));
+		}
+		if (this.callback instanceof ProgressCallback && progress.length > 2) {
+			((ProgressCallback) this.callback).setDownloadEstimate(
+					progress[1], progress[2]);
+		}
 
+		if (this.actionBar != null) {
 			final float totalMB = this.asRoundedMB(this.totalBytes);
 			final float loaded = this.asRoundedMB(loadedBytes);
 			if (loaded > this.loadedMB) {
@@ -162,10 +587,13 @@ public class DownloadTask extends AsyncTask<Object, Long, File> {
 
 	@Override
 	protected void onPostExecute(final File file) {
-		this.downloadedFile = file;
-
-		if (this.callback != null) {
-			this.callback.processDownload(file);
+		if (file != null) {
+			if (this.callback != null) {
+				this.callback.processDownload(file);
+			}
+		} else if (this.callback instanceof FailureCallback) {
+			((FailureCallback) this.callback).processDownloadFailure(
+					this.outFile, this.failure);
 		}
 	}
 }
@@ -0,0 +1,149 @@
+package org.humanoid.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Expected digest of a downloaded file. Downloads with an expected digest are
+ * only moved into place if the digest of the written bytes matches.
+ */
+public final class FileDigest {
+	private static final String SHA_256 = "SHA-256";
+	private static final String CRC_32 = "CRC32";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Creates an expected SHA-256 digest.
+	 * 
+	 * @param hex
+	 *            digest as hexadecimal string
+	 * @return expected digest
+	 */
+	public static FileDigest sha256(final String hex) {
+		final byte[] expected = new byte[hex.length() / 2];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = (byte) Integer.parseInt(
+					hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return sha256(expected);
+	}
+
+	static FileDigest sha256(final byte[] expected) {
+		return new FileDigest(SHA_256, expected);
+	}
+
+	/**
+	 * Creates an expected CRC32 checksum.
+	 * 
+	 * @param value
+	 *            checksum as returned by {@link CRC32#getValue()}
+	 * @return expected checksum
+	 */
+	public static FileDigest crc32(final long value) {
+		final byte[] expected = new byte[8];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = (byte) (value >>> (56 - 8 * i));
+		}
+		return new FileDigest(CRC_32, expected);
+	}
+
+	/**
+	 * Digest of bytes that is computed incrementally.
+	 */
+	final class Running {
+		private final transient MessageDigest digest;
+		private final transient CRC32 crc;
+
+		Running() {
+			if (CRC_32.equals(FileDigest.this.algorithm)) {
+				this.digest = null;
+				this.crc = new CRC32();
+			} else {
+				try {
+					this.digest = MessageDigest
+							.getInstance(FileDigest.this.algorithm);
+				} catch (NoSuchAlgorithmException e) {
+					throw new IllegalStateException(e);
+				}
+				this.crc = null;
+			}
+		}
+
+		void update(final byte[] bytes, final int offset, final int count) {
+			if (this.crc == null) {
+				this.digest.update(bytes, offset, count);
+			} else {
+				this.crc.update(bytes, offset, count);
+			}
+		}
+
+		/**
+		 * Checks whether the bytes digested so far have the expected digest.
+		 * 
+		 * @return whether the digest matches
+		 */
+		boolean matches() {
+			final byte[] actual;
+			if (this.crc == null) {
+				actual = this.digest.digest();
+			} else {
+				actual = FileDigest.crc32(this.crc.getValue()).expected;
+			}
+			return Arrays.equals(actual, FileDigest.this.expected);
+		}
+	}
+
+	private final transient String algorithm;
+	private final transient byte[] expected;
+
+	private FileDigest(final String algorithm, final byte[] expected) {
+		this.algorithm = algorithm;
+		this.expected = expected;
+	}
+
+	Running start() {
+		return new Running();
+	}
+
+	/**
+	 * Checks whether the given file has the expected digest. Used if the bytes
+	 * of a file were not written in order.
+	 * 
+	 * @param file
+	 *            file to check
+	 * @return whether the digest matches
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	boolean matches(final File file) throws IOException {
+		final Running running = this.start();
+		final InputStream input = new FileInputStream(file);
+		try {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int count = input.read(buffer);
+			while (count != -1) {
+				running.update(buffer, 0, count);
+				count = input.read(buffer);
+			}
+		} finally {
+			input.close();
+		}
+		return running.matches();
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder hex = new StringBuilder(this.algorithm).append(':');
+		for (byte b : this.expected) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+					Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
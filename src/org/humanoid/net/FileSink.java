@@ -0,0 +1,216 @@
+package org.humanoid.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import android.os.StatFs;
+
+/**
+ * <p>
+ * Destination of downloaded bytes that writes to a file channel.
+ * </p>
+ * 
+ * <p>
+ * The available storage is checked before anything is written, so a
+ * download that does not fit fails immediately rather than after most of it
+ * was received. Files whose length is known can be allocated up front, the
+ * allocated length is trimmed to the written bytes when the sink is
+ * finished.
+ * </p>
+ */
+final class FileSink {
+	private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Checks that the storage holding the given file can store the given
+	 * number of additional bytes.
+	 * 
+	 * @param file
+	 *            file to be written
+	 * @param bytes
+	 *            number of bytes to be written, not checked if negative
+	 * @throws DownloadException
+	 *             if there is not enough storage
+	 */
+	static void ensureSpace(final File file, final long bytes)
+			throws DownloadException {
+		final File dir = file.getAbsoluteFile().getParentFile();
+		if (bytes <= 0 || dir == null) {
+			return;
+		}
+
+		final long available;
+		try {
+			// File.getUsableSpace needs API 9
+			final StatFs stat = new StatFs(dir.getPath());
+			available = (long) stat.getAvailableBlocks() * stat.getBlockSize();
+		} catch (IllegalArgumentException e) {
+			return; // the directory cannot be examined
+		}
+		if (available < bytes) {
+			throw new DownloadException(DownloadTask.Failure.STORAGE, bytes
+					+ " bytes needed but only " + available + " available for "
+					+ file);
+		}
+	}
+
+	private final transient RandomAccessFile file;
+	private final transient FileChannel channel;
+
+	private transient long position;
+	private transient byte[] array;
+	private transient ByteBuffer arrayBuffer;
+	private transient ByteBuffer transferBuffer;
+	private transient FileDigest.Running digest;
+
+	/**
+	 * Opens the given file for writing at the given position.
+	 * 
+	 * @param file
+	 *            file to write
+	 * @param position
+	 *            position of the first written byte, usually the current
+	 *            length of the file
+	 * @param length
+	 *            expected length of the file or -1 if it is unknown
+	 * @param allocate
+	 *            whether the file should be allocated with the expected
+	 *            length
+	 * @throws IOException
+	 *             if there is not enough storage or the file cannot be opened
+	 */
+	FileSink(final File file, final long position, final long length,
+			final boolean allocate) throws IOException {
+		ensureSpace(file, length - position);
+
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		this.position = position;
+		if (allocate && length > this.file.length()) {
+			this.file.setLength(length);
+		}
+	}
+
+	long getPosition() {
+		return this.position;
+	}
+
+	/**
+	 * Computes the given digest of all bytes of the file while they are
+	 * written. Bytes that were already written before the position of this
+	 * sink are read once to be included in the digest.
+	 * 
+	 * @param expected
+	 *            expected digest of the file
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	void setDigest(final FileDigest expected) throws IOException {
+		this.digest = expected.start();
+
+		final ByteBuffer buffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+		long read = 0;
+		while (read < this.position) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), this.position
+					- read));
+			final int count = this.channel.read(buffer, read);
+			if (count == -1) {
+				throw new IOException("cannot digest " + this.position
+						+ " bytes");
+			}
+			this.digest.update(buffer.array(), 0, count);
+			read += count;
+		}
+	}
+
+	/**
+	 * Checks whether the written bytes have the digest set with
+	 * {@link #setDigest(FileDigest)}.
+	 * 
+	 * @return whether the digest matches or no digest was set
+	 */
+	boolean matchesDigest() {
+		return this.digest == null || this.digest.matches();
+	}
+
+	/**
+	 * Writes the given bytes. Consecutive calls with the same array reuse the
+	 * buffer wrapping it.
+	 */
+	void write(final byte[] bytes, final int offset, final int count)
+			throws IOException {
+		if (bytes != this.array) {
+			this.array = bytes;
+			this.arrayBuffer = ByteBuffer.wrap(bytes);
+		}
+		this.arrayBuffer.limit(offset + count).position(offset);
+		this.write(this.arrayBuffer);
+	}
+
+	/**
+	 * Writes bytes read from the given channel using a buffer that is
+	 * allocated once per sink.
+	 * 
+	 * @param source
+	 *            channel to read from
+	 * @return number of written bytes or -1 if the channel is at its end
+	 * @throws IOException
+	 *             if the channel cannot be read or the file cannot be written
+	 */
+	int transferFrom(final ReadableByteChannel source) throws IOException {
+		if (this.transferBuffer == null) {
+			// a heap buffer so that its bytes can be digested
+			this.transferBuffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+		}
+
+		this.transferBuffer.clear();
+		final int count = source.read(this.transferBuffer);
+		if (count > 0) {
+			this.transferBuffer.flip();
+			this.write(this.transferBuffer);
+		}
+		return count;
+	}
+
+	private void write(final ByteBuffer buffer) throws IOException {
+		if (this.digest != null) {
+			this.digest.update(buffer.array(),
+					buffer.arrayOffset() + buffer.position(),
+					buffer.remaining());
+		}
+		while (buffer.hasRemaining()) {
+			this.position += this.channel.write(buffer, this.position);
+		}
+	}
+
+	/**
+	 * Trims the file to the written bytes and closes it.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be trimmed or closed
+	 */
+	void finish() throws IOException {
+		try {
+			if (this.file.length() > this.position) {
+				this.channel.truncate(this.position);
+			}
+		} finally {
+			this.file.close();
+		}
+	}
+
+	/**
+	 * Closes the file without trimming it.
+	 */
+	void close() {
+		try {
+			this.file.close();
+		} catch (IOException e) {
+		}
+	}
+}
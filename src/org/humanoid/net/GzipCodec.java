@@ -0,0 +1,47 @@
+package org.humanoid.net;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Codec inflating gzip streams. Streams consisting of members that announce
+ * their size, as written by BGZF or a suitably configured pigz, are inflated
+ * on several threads. Other streams are inflated using a
+ * {@link GZIPInputStream}.
+ */
+final class GzipCodec implements DownloadTask.Codec {
+	private static final int SNIFF_SIZE = 1024;
+
+	private final transient int threads;
+
+	GzipCodec(final int threads) {
+		this.threads = threads;
+	}
+
+	@Override
+	public InputStream decode(final InputStream input) throws IOException {
+		final InputStream stream = new BufferedInputStream(input);
+		if (this.threads > 1) {
+			final byte[] header = new byte[SNIFF_SIZE];
+			stream.mark(SNIFF_SIZE);
+			int length = 0;
+			int count = stream.read(header);
+			while (count != -1 && length + count < SNIFF_SIZE) {
+				length += count;
+				count = stream.read(header, length, SNIFF_SIZE - length);
+			}
+			if (count != -1) {
+				length += count;
+			}
+			stream.reset();
+
+			if (ParallelGzipInputStream.isBlocked(header, length)) {
+				return new ParallelGzipInputStream(stream, this.threads);
+			}
+		}
+
+		return new GZIPInputStream(stream);
+	}
+}
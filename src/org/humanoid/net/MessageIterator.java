@@ -0,0 +1,87 @@
+package org.humanoid.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.protobuf.GeneratedMessage;
+
+/**
+ * <p>
+ * Iterates over a sequence of length-delimited messages read from a stream.
+ * </p>
+ * 
+ * <p>
+ * Messages are parsed one at a time when they are requested, so only the
+ * current message needs to be kept in memory. The underlying stream is closed
+ * when the end of the sequence is reached or when {@link #close()} is called.
+ * Errors while reading are reported as {@link IllegalStateException} by
+ * {@link #hasNext()}.
+ * </p>
+ * 
+ * @param <Msg>
+ *            class of the iterated messages
+ */
+public final class MessageIterator<Msg extends GeneratedMessage> implements
+		Iterator<Msg>, Closeable {
+
+	private final transient MessageType<Msg> type;
+	private final transient InputStream input;
+
+	private transient Msg next;
+	private transient boolean finished;
+
+	MessageIterator(final MessageType<Msg> type, final InputStream input) {
+		this.type = type;
+		this.input = input;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (this.next == null && !this.finished) {
+			try {
+				this.next = this.type.parseDelimited(this.input);
+			} catch (IOException e) {
+				this.close();
+				throw new IllegalStateException("cannot read "
+						+ this.type.getMessageClass().getSimpleName(), e);
+			} catch (RuntimeException e) {
+				// for example an uninitialized message
+				this.close();
+				throw e;
+			}
+			if (this.next == null) {
+				this.close();
+			}
+		}
+		return this.next != null;
+	}
+
+	@Override
+	public Msg next() {
+		if (!this.hasNext()) {
+			throw new NoSuchElementException();
+		}
+		final Msg msg = this.next;
+		this.next = null;
+		return msg;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		if (!this.finished) {
+			this.finished = true;
+			try {
+				this.input.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package org.humanoid.net;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.protobuf.GeneratedMessage;
+
+/**
+ * <p>
+ * Thread-safe registry of message types known to a {@link ProtobufServer}.
+ * </p>
+ * 
+ * <p>
+ * Message types can be registered explicitly, for example at application
+ * startup. Types that have not been registered are resolved using reflection
+ * the first time they are looked up: the query resource is the field of the
+ * string resource class named like the simple name of the message class and
+ * the prototype is obtained from its static {@code getDefaultInstance}
+ * method.
+ * </p>
+ */
+public final class MessageRegistry {
+
+	private final transient Class<?> stringResCls;
+	private final transient ConcurrentMap<Class<?>, MessageType<?>> types;
+
+	public MessageRegistry(final Class<?> stringResCls) {
+		this.stringResCls = stringResCls;
+		this.types = new ConcurrentHashMap<Class<?>, MessageType<?>>();
+	}
+
+	/**
+	 * Registers a message class so that it can be queried without using
+	 * reflection.
+	 * 
+	 * @param cls
+	 *            class of the message
+	 * @param resourceId
+	 *            string resource holding the query for the message
+	 * @param prototype
+	 *            default instance of the message class
+	 * @return registered message type
+	 */
+	public <Msg extends GeneratedMessage> MessageType<Msg> register(
+			final Class<Msg> cls, final int resourceId, final Msg prototype) {
+		final MessageType<Msg> type = new MessageType<Msg>(cls, resourceId,
+				prototype);
+		this.types.put(cls, type);
+		return type;
+	}
+
+	/**
+	 * Returns the type of the given message class, resolving and registering
+	 * it if necessary.
+	 * 
+	 * @param cls
+	 *            class of the message
+	 * @return message type of the given class
+	 * @throws Exception
+	 *             if the message type cannot be resolved using reflection
+	 */
+	@SuppressWarnings("unchecked")
+	public <Msg extends GeneratedMessage> MessageType<Msg> get(
+			final Class<Msg> cls) throws Exception {
+		MessageType<Msg> type = (MessageType<Msg>) this.types.get(cls);
+
+		if (type == null) {
+			type = new MessageType<Msg>(cls, this.stringResCls
+					.getDeclaredField(cls.getSimpleName()).getInt(null),
+					(Msg) cls.getMethod("getDefaultInstance").invoke(null));
+			final MessageType<?> existing = this.types.putIfAbsent(cls, type);
+			if (existing != null) {
+				type = (MessageType<Msg>) existing;
+			}
+		}
+
+		return type;
+	}
+}
@@ -0,0 +1,320 @@
+package org.humanoid.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * <p>
+ * Persistent store of serialized messages keyed by strings.
+ * </p>
+ * 
+ * <p>
+ * Messages are appended to a log file and located using an in-memory index
+ * that is rebuilt from the log when the store is opened, so reading a stored
+ * message requires a single seek. When the stored messages exceed a size
+ * limit, the least recently used ones are evicted. The log is compacted when
+ * most of it consists of replaced or evicted messages. Records that were not
+ * written completely, for example because the process was killed, are
+ * discarded when the log is opened.
+ * </p>
+ */
+final class MessageStore {
+	private static final String TAG = "MessageStore";
+	private static final int MAGIC = 0x484d5331; // "HMS1"
+	private static final int HEADER_SIZE = 4;
+	private static final int MAX_KEY_LENGTH = 4096;
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Position of a stored message in the log.
+	 */
+	private static final class Location {
+		private final transient long offset;
+		private final transient int length;
+		private final transient long recordSize;
+
+		Location(final long offset, final int length, final long recordSize) {
+			this.offset = offset;
+			this.length = length;
+			this.recordSize = recordSize;
+		}
+	}
+
+	private final transient File file;
+	private final transient Map<String, Location> index;
+	private final transient CRC32 crc;
+
+	private transient long maxBytes;
+	private transient long liveBytes;
+	private transient RandomAccessFile log;
+
+	MessageStore(final File file, final long maxBytes) {
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.index = new LinkedHashMap<String, Location>(16, 0.75f, true);
+		this.crc = new CRC32();
+	}
+
+	synchronized void setMaxBytes(final long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the message stored under the given key.
+	 * 
+	 * @param key
+	 *            key of the stored message
+	 * @return serialized message or null if there is none
+	 * @throws IOException
+	 *             if the log cannot be read
+	 */
+	synchronized byte[] get(final String key) throws IOException {
+		this.ensureOpen();
+
+		final Location location = this.index.get(key);
+		if (location == null) {
+			return null;
+		}
+
+		final byte[] data = new byte[location.length];
+		this.log.seek(location.offset);
+		this.log.readFully(data);
+		return data;
+	}
+
+	/**
+	 * Stores a message under the given key replacing a message previously
+	 * stored under the same key.
+	 * 
+	 * @param key
+	 *            key of the message
+	 * @param data
+	 *            serialized message
+	 * @throws IOException
+	 *             if the log cannot be written
+	 */
+	synchronized void put(final String key, final byte[] data)
+			throws IOException {
+		this.put(key, new ByteArrayInputStream(data), data.length);
+	}
+
+	/**
+	 * Stores a message read from the given stream under the given key
+	 * replacing a message previously stored under the same key. The message
+	 * is copied to the log without holding it in memory.
+	 * 
+	 * @param key
+	 *            key of the message
+	 * @param data
+	 *            stream of the serialized message, not closed
+	 * @param length
+	 *            number of bytes of the serialized message
+	 * @throws IOException
+	 *             if the stream cannot be read or the log cannot be written
+	 */
+	synchronized void put(final String key, final InputStream data,
+			final long length) throws IOException {
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("cannot store " + length + " bytes");
+		}
+		this.ensureOpen();
+
+		final long end = this.log.length();
+		final Location location;
+		this.log.seek(end);
+		try {
+			location = this.writeRecord(this.log, key.getBytes("UTF-8"),
+					data, (int) length);
+		} catch (IOException e) {
+			// later records must not follow an incomplete one
+			this.log.setLength(end);
+			throw e;
+		}
+		this.index(key, location);
+		this.evict();
+		this.compactIfWasteful();
+	}
+
+	synchronized void close() {
+		if (this.log != null) {
+			try {
+				this.log.close();
+			} catch (IOException e) {
+			}
+			this.log = null;
+			this.index.clear();
+			this.liveBytes = 0;
+		}
+	}
+
+	private void index(final String key, final Location location) {
+		final Location replaced = this.index.put(key, location);
+		if (replaced != null) {
+			this.liveBytes -= replaced.recordSize;
+		}
+		this.liveBytes += location.recordSize;
+	}
+
+	private Location writeRecord(final RandomAccessFile output,
+			final byte[] key, final byte[] data) throws IOException {
+		return this.writeRecord(output, key, new ByteArrayInputStream(data),
+				data.length);
+	}
+
+	private Location writeRecord(final RandomAccessFile output,
+			final byte[] key, final InputStream data, final int length)
+			throws IOException {
+		final long recordOffset = output.getFilePointer();
+		final ByteBuffer header = ByteBuffer.allocate(8 + key.length);
+		header.putInt(key.length).put(key).putInt(length);
+		output.write(header.array());
+
+		this.crc.reset();
+		this.crc.update(key);
+		final byte[] buffer = new byte[(int) Math.min(length, BUFFER_SIZE)];
+		int remaining = length;
+		while (remaining > 0) {
+			final int count = data.read(buffer, 0,
+					Math.min(remaining, buffer.length));
+			if (count == -1) {
+				throw new EOFException("missing " + remaining + " bytes");
+			}
+			this.crc.update(buffer, 0, count);
+			output.write(buffer, 0, count);
+			remaining -= count;
+		}
+		output.write(ByteBuffer.allocate(8).putLong(this.crc.getValue())
+				.array());
+
+		return new Location(recordOffset + header.capacity(), length,
+				output.getFilePointer() - recordOffset);
+	}
+
+	private long checksum(final byte[] key, final byte[] data) {
+		this.crc.reset();
+		this.crc.update(key);
+		this.crc.update(data);
+		return this.crc.getValue();
+	}
+
+	private void ensureOpen() throws IOException {
+		if (this.log != null) {
+			return;
+		}
+
+		this.log = new RandomAccessFile(this.file, "rw");
+		if (this.log.length() < HEADER_SIZE || this.log.readInt() != MAGIC) {
+			this.log.setLength(0);
+			this.log.writeInt(MAGIC);
+		} else {
+			this.load();
+		}
+		this.evict();
+		this.compactIfWasteful();
+	}
+
+	/**
+	 * Rebuilds the index from the log and truncates an incomplete record at
+	 * its end.
+	 */
+	private void load() throws IOException {
+		long offset = HEADER_SIZE;
+		try {
+			final long length = this.log.length();
+			while (offset < length) {
+				this.log.seek(offset);
+				final int keyLength = this.log.readInt();
+				if (keyLength < 0 || keyLength > MAX_KEY_LENGTH) {
+					throw new IOException("invalid key length");
+				}
+				final byte[] key = new byte[keyLength];
+				this.log.readFully(key);
+				final int dataLength = this.log.readInt();
+				final long dataOffset = this.log.getFilePointer();
+				if (dataLength < 0 || dataOffset + dataLength + 8 > length) {
+					throw new EOFException();
+				}
+				final byte[] data = new byte[dataLength];
+				this.log.readFully(data);
+				if (this.log.readLong() != this.checksum(key, data)) {
+					throw new IOException("checksum mismatch");
+				}
+
+				final long end = this.log.getFilePointer();
+				this.index(new String(key, "UTF-8"), new Location(dataOffset,
+						dataLength, end - offset));
+				offset = end;
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "discarding log of " + this.file + " after " + offset,
+					e);
+			this.log.setLength(offset);
+		}
+	}
+
+	/**
+	 * Removes least recently used messages from the index until the stored
+	 * messages fit the size limit.
+	 */
+	private void evict() {
+		final Iterator<Location> locations = this.index.values().iterator();
+		while (this.liveBytes > this.maxBytes && locations.hasNext()) {
+			this.liveBytes -= locations.next().recordSize;
+			locations.remove();
+		}
+	}
+
+	private void compactIfWasteful() throws IOException {
+		if (this.log.length() - HEADER_SIZE > 2 * this.liveBytes) {
+			this.compact();
+		}
+	}
+
+	/**
+	 * Rewrites the log so that it contains only indexed messages.
+	 */
+	private void compact() throws IOException {
+		final File compacted = new File(this.file.getPath() + ".compact");
+		final RandomAccessFile output = new RandomAccessFile(compacted, "rw");
+		final Map<String, Location> moved = new LinkedHashMap<String, Location>(
+				this.index.size());
+		try {
+			output.setLength(0);
+			output.writeInt(MAGIC);
+			for (Map.Entry<String, Location> entry : this.index.entrySet()) {
+				final Location location = entry.getValue();
+				final byte[] key = entry.getKey().getBytes("UTF-8");
+				final byte[] data = new byte[location.length];
+				this.log.seek(location.offset);
+				this.log.readFully(data);
+
+				moved.put(entry.getKey(), this.writeRecord(output, key, data));
+			}
+		} finally {
+			output.close();
+		}
+
+		this.close();
+		if (!compacted.renameTo(this.file)) {
+			compacted.delete();
+			throw new IOException("cannot compact " + this.file);
+		}
+
+		this.log = new RandomAccessFile(this.file, "rw");
+		this.index.putAll(moved);
+		for (Location location : moved.values()) {
+			this.liveBytes += location.recordSize;
+		}
+	}
+}
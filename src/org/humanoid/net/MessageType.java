@@ -0,0 +1,90 @@
+package org.humanoid.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.res.Resources;
+
+import com.google.protobuf.GeneratedMessage;
+import com.google.protobuf.Message;
+
+/**
+ * Resolved description of a message class that can be queried from a
+ * {@link ProtobufServer}: the string resource holding its query and a
+ * prototype instance used to parse responses without reflection.
+ * 
+ * @param <Msg>
+ *            class of the described message
+ */
+public final class MessageType<Msg extends GeneratedMessage> {
+
+	private final transient Class<Msg> cls;
+	private final transient int resourceId;
+	private final transient Msg prototype;
+	private transient volatile UrlTemplate template;
+
+	public MessageType(final Class<Msg> cls, final int resourceId,
+			final Msg prototype) {
+		this.cls = cls;
+		this.resourceId = resourceId;
+		this.prototype = prototype;
+	}
+
+	public Class<Msg> getMessageClass() {
+		return this.cls;
+	}
+
+	public int getResourceId() {
+		return this.resourceId;
+	}
+
+	/**
+	 * Returns the compiled query template of the described class, compiling
+	 * it when it is requested for the first time.
+	 * 
+	 * @param res
+	 *            resources holding the query string
+	 * @return compiled query template
+	 */
+	UrlTemplate getTemplate(final Resources res) {
+		if (this.template == null) {
+			this.template = UrlTemplate.compile(res
+					.getString(this.resourceId));
+		}
+		return this.template;
+	}
+
+	/**
+	 * Parses a message of the described class from the given stream. The
+	 * stream is read until its end but not closed.
+	 * 
+	 * @param input
+	 *            stream containing a serialized message
+	 * @return parsed message
+	 * @throws IOException
+	 *             if the stream cannot be read or does not contain a valid
+	 *             message
+	 */
+	@SuppressWarnings("unchecked")
+	public Msg parse(final InputStream input) throws IOException {
+		return (Msg) this.prototype.newBuilderForType().mergeFrom(input)
+				.build();
+	}
+
+	/**
+	 * Parses a length-delimited message of the described class from the given
+	 * stream. Only the bytes of the parsed message are read.
+	 * 
+	 * @param input
+	 *            stream containing length-delimited messages
+	 * @return parsed message or null if the stream is at its end
+	 * @throws IOException
+	 *             if the stream cannot be read or does not contain a valid
+	 *             message
+	 */
+	@SuppressWarnings("unchecked")
+	public Msg parseDelimited(final InputStream input) throws IOException {
+		final Message.Builder builder = this.prototype.newBuilderForType();
+		return builder.mergeDelimitedFrom(input) ? (Msg) builder.build() : null;
+	}
+}
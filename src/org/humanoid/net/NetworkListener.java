@@ -29,9 +29,18 @@ public abstract class NetworkListener extends BroadcastReceiver {
 		context.unregisterReceiver(this);
 	}
 
+	/**
+	 * Returns information about the currently active network.
+	 * 
+	 * @return active network or null if there is none
+	 */
+	protected NetworkInfo getActiveNetworkInfo() {
+		return this.manager.getActiveNetworkInfo();
+	}
+
 	@Override
 	public void onReceive(final Context context, final Intent intent) {
-		final NetworkInfo info = manager.getActiveNetworkInfo();
+		final NetworkInfo info = this.getActiveNetworkInfo();
 		this.onNetworkStateChange(info != null && info.isAvailable());
 	}
 }
@@ -0,0 +1,243 @@
+package org.humanoid.net;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * <p>
+ * Network listener that defers work until a suitable network is available.
+ * </p>
+ * 
+ * <p>
+ * Connectivity broadcasts are debounced, so the network is only classified
+ * once it has been stable for a short time and flapping connections do not
+ * cause redundant work. Jobs are scheduled with a requirement on the network
+ * class. Jobs whose requirement is met are run immediately, the others are
+ * held back and run together as soon as a suitable network appears, so that
+ * the radio is woken up once for all of them. Jobs are run on the UI thread
+ * and are expected to start their work asynchronously, for example using
+ * {@link DownloadManager} or {@link ProtobufServer#queryAsync}.
+ * </p>
+ */
+public class NetworkScheduler extends NetworkListener {
+	private static final long DEFAULT_DEBOUNCE_MILLIS = 2000;
+
+	/**
+	 * Classes of networks, in decreasing order of suitability for large
+	 * transfers.
+	 */
+	public enum NetworkClass {
+		/** Wi-Fi or Ethernet, usually without a data limit. */
+		UNMETERED,
+		/** Mobile network in the home network of the subscriber. */
+		METERED,
+		/** Mobile network of another provider, usually expensive. */
+		ROAMING,
+		/** No network is connected. */
+		NONE
+	}
+
+	/**
+	 * Requirements of jobs on the network they are run on.
+	 */
+	public enum Requirement {
+		/** Any connected network. */
+		CONNECTED(NetworkClass.ROAMING),
+		/** Any connected network except roaming ones. */
+		NOT_ROAMING(NetworkClass.METERED),
+		/** An unmetered network. */
+		UNMETERED(NetworkClass.UNMETERED);
+
+		private final transient NetworkClass worst;
+
+		private Requirement(final NetworkClass worst) {
+			this.worst = worst;
+		}
+
+		public boolean isMetBy(final NetworkClass networkClass) {
+			return networkClass.compareTo(this.worst) <= 0;
+		}
+	}
+
+	/**
+	 * Listener notified whenever connectivity has settled after a change,
+	 * even if the class of the network is the same as before the change, as
+	 * connections may have been lost in the meantime.
+	 */
+	public interface Listener {
+		void onNetworkClassChange(NetworkClass networkClass);
+	}
+
+	/**
+	 * Classifies the given network. Metered networks are recognized by their
+	 * type because the platform cannot be asked on all supported versions.
+	 * 
+	 * @param info
+	 *            active network or null
+	 * @return class of the network
+	 */
+	public static NetworkClass classify(final NetworkInfo info) {
+		final NetworkClass networkClass;
+		if (info == null || !info.isConnected()) {
+			networkClass = NetworkClass.NONE;
+		} else if (info.isRoaming()) {
+			networkClass = NetworkClass.ROAMING;
+		} else if (info.getType() == ConnectivityManager.TYPE_WIFI
+				|| info.getType() == ConnectivityManager.TYPE_ETHERNET) {
+			networkClass = NetworkClass.UNMETERED;
+		} else {
+			networkClass = NetworkClass.METERED;
+		}
+		return networkClass;
+	}
+
+	/**
+	 * Job waiting for a suitable network.
+	 */
+	private static final class Deferred {
+		private final transient Runnable job;
+		private final transient Requirement requirement;
+
+		Deferred(final Runnable job, final Requirement requirement) {
+			this.job = job;
+			this.requirement = requirement;
+		}
+	}
+
+	private final transient Handler handler;
+	private final transient List<Deferred> deferred;
+	private final transient List<Listener> listeners;
+	private final transient Runnable settle;
+
+	private transient long debounceMillis;
+	private transient NetworkClass networkClass;
+
+	public NetworkScheduler(final Context context) {
+		super(context);
+
+		this.handler = new Handler(Looper.getMainLooper());
+		this.deferred = new ArrayList<Deferred>();
+		this.listeners = new CopyOnWriteArrayList<Listener>();
+		this.settle = new Runnable() {
+			@Override
+			public void run() {
+				NetworkScheduler.this.settle();
+			}
+		};
+		this.debounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+		this.networkClass = classify(this.getActiveNetworkInfo());
+	}
+
+	/**
+	 * Sets the time connectivity has to be stable before it is classified.
+	 * 
+	 * @param debounceMillis
+	 *            time in milliseconds
+	 */
+	public void setDebounceMillis(final long debounceMillis) {
+		this.debounceMillis = debounceMillis;
+	}
+
+	/**
+	 * Returns the class of the network as of the last settled connectivity
+	 * change.
+	 * 
+	 * @return class of the network
+	 */
+	public NetworkClass getNetworkClass() {
+		return this.networkClass;
+	}
+
+	public void addListener(final Listener listener) {
+		this.listeners.add(listener);
+	}
+
+	public void removeListener(final Listener listener) {
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * Runs the given job once the network meets the given requirement. Must
+	 * be called on the UI thread.
+	 * 
+	 * @param job
+	 *            job to run on the UI thread
+	 * @param requirement
+	 *            requirement on the network
+	 * @return whether the job was run immediately
+	 */
+	public boolean schedule(final Runnable job, final Requirement requirement) {
+		if (requirement.isMetBy(this.networkClass)) {
+			job.run();
+			return true;
+		}
+
+		this.deferred.add(new Deferred(job, requirement));
+		return false;
+	}
+
+	/**
+	 * Removes a deferred job.
+	 * 
+	 * @param job
+	 *            job passed to {@link #schedule(Runnable, Requirement)}
+	 * @return whether the job was still deferred
+	 */
+	public boolean cancel(final Runnable job) {
+		final Iterator<Deferred> iterator = this.deferred.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().job == job) {
+				iterator.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of jobs waiting for a suitable network.
+	 * 
+	 * @return number of deferred jobs
+	 */
+	public int getDeferredCount() {
+		return this.deferred.size();
+	}
+
+	@Override
+	public void onNetworkStateChange(final boolean isConnected) {
+		// restart the delay with every broadcast so that only stable
+		// connectivity is classified
+		this.handler.removeCallbacks(this.settle);
+		this.handler.postDelayed(this.settle, this.debounceMillis);
+	}
+
+	private void settle() {
+		final NetworkClass settled = classify(this.getActiveNetworkInfo());
+		this.networkClass = settled;
+
+		for (Listener listener : this.listeners) {
+			listener.onNetworkClassChange(settled);
+		}
+
+		final List<Runnable> batch = new ArrayList<Runnable>();
+		final Iterator<Deferred> iterator = this.deferred.iterator();
+		while (iterator.hasNext()) {
+			final Deferred next = iterator.next();
+			if (next.requirement.isMetBy(settled)) {
+				batch.add(next.job);
+				iterator.remove();
+			}
+		}
+		for (Runnable job : batch) {
+			job.run();
+		}
+	}
+}
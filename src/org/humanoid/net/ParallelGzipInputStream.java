@@ -0,0 +1,290 @@
+package org.humanoid.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ * Stream inflating gzip data that consists of independent members of known
+ * size on several threads.
+ * </p>
+ * 
+ * <p>
+ * Each member must announce its compressed size in a {@code BC} subfield of
+ * its extra header field as defined by the BGZF format, so that members can
+ * be read without inflating them. Members are inflated concurrently and
+ * their contents returned in order. Only a bounded number of members is read
+ * ahead. If a member does not announce its size, it and all following members
+ * are inflated sequentially.
+ * </p>
+ */
+final class ParallelGzipInputStream extends InputStream {
+	private static final int FIXED_HEADER_SIZE = 12;
+	private static final int TRAILER_SIZE = 8;
+	private static final int FLAG_EXTRA = 4;
+	private static final int FLAG_NAME = 8;
+	private static final int FLAG_COMMENT = 16;
+	private static final int FLAG_HEADER_CRC = 2;
+	private static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * Checks whether the given bytes start with a gzip member announcing its
+	 * compressed size.
+	 * 
+	 * @param header
+	 *            first bytes of a stream
+	 * @param length
+	 *            number of valid bytes
+	 * @return whether the stream can be inflated in parallel
+	 */
+	static boolean isBlocked(final byte[] header, final int length) {
+		return length >= FIXED_HEADER_SIZE && (header[0] & 0xff) == 0x1f
+				&& (header[1] & 0xff) == 0x8b
+				&& (header[3] & FLAG_EXTRA) != 0
+				&& getBlockSize(header, length) > 0;
+	}
+
+	/**
+	 * Returns the size of the member whose header is given, read from the
+	 * {@code BC} subfield of the extra field.
+	 * 
+	 * @return size of the member or -1 if it is not announced
+	 */
+	private static int getBlockSize(final byte[] header, final int length) {
+		final int extraLength = readShort(header, 10);
+		int pos = FIXED_HEADER_SIZE;
+		final int end = Math.min(length, FIXED_HEADER_SIZE + extraLength);
+		while (pos + 4 <= end) {
+			final int subfieldLength = readShort(header, pos + 2);
+			if (header[pos] == 'B' && header[pos + 1] == 'C'
+					&& subfieldLength == 2 && pos + 6 <= end) {
+				return readShort(header, pos + 4) + 1;
+			}
+			pos += 4 + subfieldLength;
+		}
+		return -1;
+	}
+
+	private static int readShort(final byte[] bytes, final int pos) {
+		return (bytes[pos] & 0xff) | (bytes[pos + 1] & 0xff) << 8;
+	}
+
+	private static int readInt(final byte[] bytes, final int pos) {
+		return readShort(bytes, pos) | readShort(bytes, pos + 2) << 16;
+	}
+
+	/**
+	 * Inflates a complete member.
+	 */
+	private static final class Member implements Callable<byte[]> {
+		private final transient byte[] data;
+
+		Member(final byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public byte[] call() throws IOException {
+			final int flags = this.data[3];
+			int pos = FIXED_HEADER_SIZE + readShort(this.data, 10);
+			if ((flags & FLAG_NAME) != 0) {
+				pos = this.skipString(pos);
+			}
+			if ((flags & FLAG_COMMENT) != 0) {
+				pos = this.skipString(pos);
+			}
+			if ((flags & FLAG_HEADER_CRC) != 0) {
+				pos += 2;
+			}
+
+			final int trailer = this.data.length - TRAILER_SIZE;
+			final int size = readInt(this.data, trailer + 4);
+			if (size < 0 || size > MAX_BLOCK_SIZE) {
+				throw new IOException("invalid gzip member size " + size);
+			}
+			final byte[] output = new byte[size];
+			final Inflater inflater = new Inflater(true);
+			try {
+				inflater.setInput(this.data, pos, trailer - pos);
+				int count = 0;
+				while (count < output.length && !inflater.finished()) {
+					final int inflated = inflater.inflate(output, count,
+							output.length - count);
+					if (inflated == 0
+							&& (inflater.needsInput() || inflater
+									.needsDictionary())) {
+						throw new EOFException("truncated gzip member");
+					}
+					count += inflated;
+				}
+				if (count != output.length) {
+					throw new IOException("invalid gzip member size");
+				}
+			} catch (DataFormatException e) {
+				final IOException failure = new IOException(
+						"invalid gzip member");
+				failure.initCause(e);
+				throw failure;
+			} finally {
+				inflater.end();
+			}
+
+			final CRC32 crc = new CRC32();
+			crc.update(output);
+			if ((int) crc.getValue() != readInt(this.data, trailer)) {
+				throw new IOException("gzip member checksum mismatch");
+			}
+			return output;
+		}
+
+		private int skipString(final int start) {
+			int pos = start;
+			while (this.data[pos] != 0) {
+				pos++;
+			}
+			return pos + 1;
+		}
+	}
+
+	private final transient DataInputStream input;
+	private final transient ExecutorService executor;
+	private final transient LinkedList<Future<byte[]>> pending;
+	private final transient int readAhead;
+	private final transient byte[] header;
+
+	private transient InputStream sequential;
+	private transient boolean inputFinished;
+	private transient byte[] current;
+	private transient int position;
+
+	/**
+	 * Creates a stream inflating the given input on the given number of
+	 * threads.
+	 * 
+	 * @param input
+	 *            gzip stream, should be checked with
+	 *            {@link #isBlocked(byte[], int)}
+	 * @param threads
+	 *            number of threads inflating members
+	 */
+	ParallelGzipInputStream(final InputStream input, final int threads) {
+		super();
+
+		this.input = new DataInputStream(input);
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.pending = new LinkedList<Future<byte[]>>();
+		this.readAhead = 2 * threads;
+		this.header = new byte[FIXED_HEADER_SIZE + 0xffff];
+	}
+
+	/**
+	 * Reads members and submits them for inflation until enough members are
+	 * pending or the input is exhausted.
+	 */
+	private void readMembers() throws IOException {
+		while (!this.inputFinished && this.pending.size() < this.readAhead) {
+			final int first = this.input.read();
+			if (first == -1) {
+				this.inputFinished = true;
+				break;
+			}
+			this.header[0] = (byte) first;
+			this.input.readFully(this.header, 1, FIXED_HEADER_SIZE - 1);
+			int length = FIXED_HEADER_SIZE;
+			if ((this.header[3] & FLAG_EXTRA) != 0) {
+				final int extraLength = readShort(this.header, 10);
+				this.input.readFully(this.header, length, extraLength);
+				length += extraLength;
+			}
+
+			if (!isBlocked(this.header, length)) {
+				// inflate this and all following members sequentially
+				this.inputFinished = true;
+				this.sequential = new GZIPInputStream(new SequenceInputStream(
+						new ByteArrayInputStream(this.header, 0, length),
+						this.input));
+				break;
+			}
+
+			final byte[] member = new byte[getBlockSize(this.header, length)];
+			if (member.length < length + TRAILER_SIZE) {
+				throw new IOException("invalid gzip member size");
+			}
+			System.arraycopy(this.header, 0, member, 0, length);
+			this.input.readFully(member, length, member.length - length);
+			this.pending.add(this.executor.submit(new Member(member)));
+		}
+	}
+
+	private boolean nextChunk() throws IOException {
+		while (this.current == null || this.position == this.current.length) {
+			this.readMembers();
+			if (this.pending.isEmpty()) {
+				this.executor.shutdown();
+				return false;
+			}
+
+			try {
+				this.current = this.pending.removeFirst().get();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				final IOException failure = new IOException(
+						"cannot inflate gzip member");
+				failure.initCause(cause);
+				throw failure;
+			}
+			this.position = 0;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		final byte[] single = new byte[1];
+		return this.read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(final byte[] buffer, final int offset, final int length)
+			throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if (!this.nextChunk()) {
+			return this.sequential == null ? -1 : this.sequential.read(buffer,
+					offset, length);
+		}
+
+		final int count = Math.min(length, this.current.length
+				- this.position);
+		System.arraycopy(this.current, this.position, buffer, offset, count);
+		this.position += count;
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.executor.shutdownNow();
+		this.input.close();
+	}
+}
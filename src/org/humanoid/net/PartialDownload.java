@@ -0,0 +1,419 @@
+package org.humanoid.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Properties;
+
+/**
+ * <p>
+ * Partially downloaded file that can be resumed using HTTP range requests.
+ * </p>
+ * 
+ * <p>
+ * Received bytes are appended to a partial file next to the target file.
+ * Metadata describing the download, namely its URL, validator and expected
+ * length, is kept in a second file so that a download can be resumed even
+ * after the process was restarted. The partial file is moved to the target
+ * file only after it has been verified to be complete, so the target file
+ * never exists in an incomplete state.
+ * </p>
+ * 
+ * <p>
+ * A download can also be split into segments that are downloaded
+ * concurrently. The partial file of a segmented download is allocated with
+ * the expected length up front and the metadata records how many bytes of
+ * each segment have been written.
+ * </p>
+ */
+final class PartialDownload {
+	private static final String URL = "url";
+	private static final String ETAG = "etag";
+	private static final String LAST_MODIFIED = "lastModified";
+	private static final String LENGTH = "length";
+	private static final String SEGMENTS = "segments";
+	private static final String SEGMENT = "segment.";
+
+	private final transient File target;
+	private final transient File partFile;
+	private final transient File metaFile;
+	private final transient String url;
+	private final transient Properties meta;
+
+	private transient long offset;
+
+	PartialDownload(final File target, final String url) {
+		this.target = target;
+		this.partFile = new File(target.getPath() + ".part");
+		this.metaFile = new File(target.getPath() + ".meta");
+		this.url = url;
+		this.meta = new Properties();
+
+		this.load();
+	}
+
+	private void load() {
+		if (this.partFile.exists() && this.metaFile.exists()) {
+			try {
+				final InputStream input = new FileInputStream(this.metaFile);
+				try {
+					this.meta.load(input);
+				} finally {
+					input.close();
+				}
+			} catch (IOException e) {
+				this.meta.clear();
+			}
+		}
+
+		if (this.url.equals(this.meta.getProperty(URL))) {
+			this.offset = this.partFile.length();
+		} else {
+			this.reset();
+		}
+	}
+
+	private synchronized void reset() {
+		this.meta.clear();
+		this.meta.setProperty(URL, this.url);
+		this.offset = 0;
+		this.partFile.delete();
+		this.metaFile.delete();
+	}
+
+	private synchronized void save() throws IOException {
+		final OutputStream output = new FileOutputStream(this.metaFile);
+		try {
+			this.meta.store(output, null);
+		} finally {
+			output.close();
+		}
+	}
+
+	File getPartFile() {
+		return this.partFile;
+	}
+
+	/**
+	 * Returns the number of bytes that have already been downloaded.
+	 * 
+	 * @return offset at which the download continues
+	 */
+	long getOffset() {
+		return this.offset;
+	}
+
+	/**
+	 * Returns the expected length of the downloaded file.
+	 * 
+	 * @return expected length or -1 if it is unknown
+	 */
+	long getLength() {
+		return Long.parseLong(this.meta.getProperty(LENGTH, "-1"));
+	}
+
+	private String getValidator() {
+		return this.meta.getProperty(ETAG,
+				this.meta.getProperty(LAST_MODIFIED));
+	}
+
+	private HttpURLConnection openConnection(final long start, final long end)
+			throws IOException {
+		final HttpURLConnection http = (HttpURLConnection) new URL(this.url)
+				.openConnection();
+		// offsets refer to the bytes of the file, not to an encoding of them
+		http.setRequestProperty("Accept-Encoding", "identity");
+		http.setRequestProperty("Range", "bytes=" + start + "-"
+				+ (end < 0 ? "" : Long.toString(end - 1)));
+		http.setRequestProperty("If-Range", this.getValidator());
+		return http;
+	}
+
+	/**
+	 * Opens a connection requesting the bytes that have not been downloaded
+	 * yet. The request is only answered partially if the file on the server
+	 * has not changed since the download was started.
+	 * 
+	 * @return connection to the server
+	 * @throws IOException
+	 *             if the connection cannot be opened
+	 */
+	HttpURLConnection openConnection() throws IOException {
+		if (this.offset > 0 && this.getValidator() == null) {
+			this.reset();
+		}
+
+		final HttpURLConnection http;
+		if (this.offset > 0) {
+			http = this.openConnection(this.offset, -1);
+		} else {
+			http = (HttpURLConnection) new URL(this.url).openConnection();
+			http.setRequestProperty("Accept-Encoding", "identity");
+		}
+		return http;
+	}
+
+	/**
+	 * Inspects the response to a request made using {@link #openConnection()}
+	 * and returns a stream of the bytes following the current offset.
+	 * 
+	 * @param http
+	 *            connection to the server
+	 * @return stream of bytes that still need to be downloaded
+	 * @throws IOException
+	 *             if the response cannot be used to continue the download
+	 */
+	InputStream getRemainingInput(final HttpURLConnection http)
+			throws IOException {
+		final int status = http.getResponseCode();
+
+		if (status == HttpURLConnection.HTTP_PARTIAL) {
+			this.checkRange(http, this.offset);
+		} else if (status == 416 && this.offset > 0
+				&& this.offset == this.getLength()) {
+			// requested range is empty because all bytes were downloaded
+			return new ByteArrayInputStream(new byte[0]);
+		} else if (status == HttpURLConnection.HTTP_OK) {
+			this.reset();
+			final long length = http.getContentLength();
+			this.meta.setProperty(LENGTH, Long.toString(length));
+			final String etag = http.getHeaderField("ETag");
+			if (etag != null) {
+				this.meta.setProperty(ETAG, etag);
+			}
+			final String lastModified = http.getHeaderField("Last-Modified");
+			if (lastModified != null) {
+				this.meta.setProperty(LAST_MODIFIED, lastModified);
+			}
+			this.save();
+		} else {
+			if (status == 416) {
+				this.reset();
+			}
+			throw new IOException("unexpected response " + status);
+		}
+
+		return http.getInputStream();
+	}
+
+	private void checkRange(final HttpURLConnection http, final long start)
+			throws IOException {
+		final String range = http.getHeaderField("Content-Range");
+		if (range == null || !range.startsWith("bytes " + start + "-")) {
+			this.reset();
+			throw new IOException("unexpected range " + range);
+		}
+	}
+
+	/**
+	 * Checks whether the remaining bytes can be downloaded in concurrent
+	 * segments after a response to {@link #openConnection()} announced that
+	 * the server supports range requests.
+	 * 
+	 * @param http
+	 *            connection to the server
+	 * @return whether this download can be segmented
+	 */
+	boolean canSegment(final HttpURLConnection http) {
+		return this.offset == 0 && this.getLength() > 0
+				&& this.getValidator() != null
+				&& "bytes".equals(http.getHeaderField("Accept-Ranges"));
+	}
+
+	boolean isSegmented() {
+		return this.meta.containsKey(SEGMENTS);
+	}
+
+	/**
+	 * Splits this download into the given number of segments and allocates
+	 * the partial file.
+	 * 
+	 * @param count
+	 *            number of segments
+	 * @throws IOException
+	 *             if there is not enough storage or the partial file cannot
+	 *             be allocated
+	 */
+	void segment(final int count) throws IOException {
+		FileSink.ensureSpace(this.partFile, this.getLength());
+		final RandomAccessFile file = new RandomAccessFile(this.partFile, "rw");
+		try {
+			file.setLength(this.getLength());
+		} finally {
+			file.close();
+		}
+
+		this.meta.setProperty(SEGMENTS, Integer.toString(count));
+		for (int i = 0; i < count; i++) {
+			this.meta.setProperty(SEGMENT + i, "0");
+		}
+		this.save();
+	}
+
+	int getSegmentCount() {
+		return Integer.parseInt(this.meta.getProperty(SEGMENTS, "0"));
+	}
+
+	long getSegmentStart(final int segment) {
+		return segment * this.getLength() / this.getSegmentCount();
+	}
+
+	long getSegmentEnd(final int segment) {
+		return this.getSegmentStart(segment + 1);
+	}
+
+	/**
+	 * Returns the number of bytes of the given segment that have been
+	 * written.
+	 * 
+	 * @param segment
+	 *            index of the segment
+	 * @return number of written bytes
+	 */
+	synchronized long getSegmentProgress(final int segment) {
+		return Long.parseLong(this.meta.getProperty(SEGMENT + segment, "0"));
+	}
+
+	/**
+	 * Records the number of bytes of the given segment that have been
+	 * written. The record is saved if requested, an unsaved record only
+	 * causes bytes to be downloaded again after a restart.
+	 * 
+	 * @param segment
+	 *            index of the segment
+	 * @param progress
+	 *            number of written bytes
+	 * @param save
+	 *            whether the metadata should be saved
+	 * @throws IOException
+	 *             if the metadata cannot be saved
+	 */
+	synchronized void setSegmentProgress(final int segment,
+			final long progress, final boolean save) throws IOException {
+		this.meta.setProperty(SEGMENT + segment, Long.toString(progress));
+		if (save) {
+			this.save();
+		}
+	}
+
+	/**
+	 * Opens a connection requesting the remaining bytes of the given segment.
+	 * 
+	 * @param segment
+	 *            index of the segment
+	 * @return stream of the remaining bytes of the segment
+	 * @throws IOException
+	 *             if the file on the server has changed or the connection
+	 *             fails
+	 */
+	InputStream openSegment(final int segment) throws IOException {
+		final long start = this.getSegmentStart(segment)
+				+ this.getSegmentProgress(segment);
+		final HttpURLConnection http = this.openConnection(start,
+				this.getSegmentEnd(segment));
+
+		if (http.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+			http.disconnect();
+			throw new DownloadException(DownloadTask.Failure.CHANGED, "segment "
+					+ segment + " not available");
+		}
+		this.checkRange(http, start);
+
+		return http.getInputStream();
+	}
+
+	/**
+	 * Discards received bytes so that the download starts over. No segment
+	 * may be downloaded concurrently.
+	 */
+	synchronized void discard() {
+		this.reset();
+	}
+
+	/**
+	 * Opens the partial file for appending received bytes.
+	 * 
+	 * @return stream appending to the partial file
+	 * @throws IOException
+	 *             if the partial file cannot be opened
+	 */
+	OutputStream openPart() throws IOException {
+		return new FileOutputStream(this.partFile, true);
+	}
+
+	/**
+	 * Checks that the partial file has the expected length.
+	 * 
+	 * @throws DownloadException
+	 *             if the partial file is incomplete
+	 */
+	void verifyLength() throws DownloadException {
+		final long length = this.getLength();
+		long received = this.partFile.length();
+		if (this.isSegmented()) {
+			received = 0;
+			for (int i = 0; i < this.getSegmentCount(); i++) {
+				received += this.getSegmentProgress(i);
+			}
+		}
+
+		if (length >= 0 && received != length) {
+			throw new DownloadException(DownloadTask.Failure.INCOMPLETE,
+					"downloaded " + received + " of " + length + " bytes");
+		}
+	}
+
+	/**
+	 * Moves the given completely written file to the target file and removes
+	 * the partial download.
+	 * 
+	 * @param complete
+	 *            verified file, either the partial file or a file derived
+	 *            from it
+	 * @throws IOException
+	 *             if the file cannot be moved
+	 */
+	void commit(final File complete) throws IOException {
+		replace(complete, this.target);
+		this.partFile.delete();
+		this.metaFile.delete();
+	}
+
+	/**
+	 * Moves the given file to the given target, replacing an existing target
+	 * file. Renaming usually replaces the target atomically. Otherwise the
+	 * existing target is kept as a backup until the file was moved and
+	 * restored if it cannot be moved.
+	 * 
+	 * @param file
+	 *            file to move
+	 * @param target
+	 *            file to replace
+	 * @throws IOException
+	 *             if the file cannot be moved
+	 */
+	static void replace(final File file, final File target)
+			throws IOException {
+		if (file.renameTo(target)) {
+			return;
+		}
+
+		final File backup = new File(target.getPath() + ".old");
+		backup.delete();
+		if (target.exists() && !target.renameTo(backup)) {
+			throw new IOException("cannot back up " + target);
+		}
+		if (!file.renameTo(target)) {
+			backup.renameTo(target);
+			throw new IOException("cannot rename " + file + " to " + target);
+		}
+		backup.delete();
+	}
+}
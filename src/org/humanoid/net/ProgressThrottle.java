@@ -0,0 +1,111 @@
+package org.humanoid.net;
+
+/**
+ * <p>
+ * Decides which progress updates of a download are reported and estimates
+ * its bandwidth.
+ * </p>
+ * 
+ * <p>
+ * An update is reported if a minimum interval has passed or the progress
+ * advanced by a minimum fraction of the total since the last reported
+ * update, whichever comes first. The bandwidth is an exponentially weighted
+ * moving average of the rates between samples, so it follows changes of the
+ * connection without jumping with every read.
+ * </p>
+ */
+final class ProgressThrottle {
+	private static final long SAMPLE_INTERVAL = 250; // ms
+	private static final double SMOOTHING_TIME = 3000; // ms
+
+	private final transient long total;
+	private final transient long minInterval;
+	private final transient long minStep;
+
+	private transient long reportedTime = -1;
+	private transient long reportedBytes;
+	private transient long sampleTime;
+	private transient long sampleBytes;
+	private transient double bytesPerMilli = -1;
+	private transient boolean completed;
+
+	/**
+	 * Creates a throttle for a download of the given size.
+	 * 
+	 * @param total
+	 *            expected number of bytes
+	 * @param maxPerSecond
+	 *            maximum number of updates per second reported because time
+	 *            has passed
+	 * @param percentStep
+	 *            progress in percent after which an update is reported
+	 *            regardless of the time passed
+	 */
+	ProgressThrottle(final long total, final int maxPerSecond,
+			final int percentStep) {
+		this.total = total;
+		this.minInterval = 1000 / Math.max(1, maxPerSecond);
+		this.minStep = Math.max(1, total * percentStep / 100);
+	}
+
+	/**
+	 * Records the given progress and checks whether it should be reported.
+	 * The first update and the update completing the download are always
+	 * reported, further updates of downloads exceeding the expected size are
+	 * still throttled.
+	 * 
+	 * @param bytes
+	 *            number of downloaded bytes
+	 * @param now
+	 *            current time in milliseconds
+	 * @return whether the update should be reported
+	 */
+	boolean update(final long bytes, final long now) {
+		if (this.reportedTime < 0) {
+			this.sampleTime = now;
+			this.sampleBytes = bytes;
+		} else if (now - this.sampleTime >= SAMPLE_INTERVAL) {
+			final long elapsed = now - this.sampleTime;
+			final double rate = (double) (bytes - this.sampleBytes) / elapsed;
+			if (this.bytesPerMilli < 0) {
+				this.bytesPerMilli = rate;
+			} else {
+				final double weight = 1 - Math.exp(-elapsed / SMOOTHING_TIME);
+				this.bytesPerMilli += weight * (rate - this.bytesPerMilli);
+			}
+			this.sampleTime = now;
+			this.sampleBytes = bytes;
+		}
+
+		final boolean completing = !this.completed && bytes >= this.total;
+		if (this.reportedTime < 0 || completing
+				|| now - this.reportedTime >= this.minInterval
+				|| bytes - this.reportedBytes >= this.minStep) {
+			this.completed |= completing;
+			this.reportedTime = now;
+			this.reportedBytes = bytes;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the estimated bandwidth.
+	 * 
+	 * @return bytes per second or -1 if there is no estimate yet
+	 */
+	long getBytesPerSecond() {
+		return this.bytesPerMilli < 0 ? -1
+				: Math.round(this.bytesPerMilli * 1000);
+	}
+
+	/**
+	 * Returns the estimated time until the download is complete.
+	 * 
+	 * @return milliseconds or -1 if there is no estimate yet
+	 */
+	long getRemainingMillis() {
+		return this.bytesPerMilli <= 0 ? -1 : Math.round(Math.max(0,
+				this.total - this.reportedBytes) / this.bytesPerMilli);
+	}
+}
@@ -1,14 +1,34 @@
 package org.humanoid.net;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.humanoid.net.QueryMetrics.CacheStatus;
 
 import android.app.Activity;
-import android.content.Context;
 import android.content.res.Resources;
+import android.os.Build;
 import android.util.Log;
 
 import com.google.protobuf.GeneratedMessage;
@@ -20,6 +40,11 @@ import com.google.protobuf.GeneratedMessage;
  */
 public final class ProtobufServer {
 	private static final String TAG = "ProtobufServer";
+	private static final int DEFAULT_POOL_SIZE = 4;
+	private static final long KEEP_ALIVE_SECONDS = 30;
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int READ_TIMEOUT = 20000;
+	private static final long DEFAULT_STORE_LIMIT = 4 * 1024 * 1024; // 4 MB
 	private static ProtobufServer instance = null;
 
 	public static boolean isInitialized() {
@@ -47,23 +72,94 @@ public final class ProtobufServer {
 	 */
 	public static void createInstance(final Activity context,
 			final Class stringResCls, final String baseUrl) {
+		ProtobufServer.createInstance(context, stringResCls, baseUrl,
+				DEFAULT_POOL_SIZE);
+	}
+
+	/**
+	 * Creates a singleton instance of this class that runs asynchronous
+	 * queries on at most the given number of worker threads.
+	 * 
+	 * @param poolSize
+	 *            maximum number of concurrent asynchronous queries
+	 */
+	public static void createInstance(final Activity context,
+			final Class stringResCls, final String baseUrl,
+			final int poolSize) {
+		if (ProtobufServer.instance != null) {
+			ProtobufServer.instance.executor.shutdown();
+			ProtobufServer.instance.store.close();
+		}
 		ProtobufServer.instance = new ProtobufServer(context, stringResCls,
-				baseUrl);
+				baseUrl, poolSize);
+	}
+
+	/**
+	 * Receives the result of an asynchronous query on the UI thread.
+	 * 
+	 * @param <Msg>
+	 *            class of the queried message
+	 */
+	public interface Callback<Msg extends GeneratedMessage> {
+
+		/**
+		 * Called on the UI thread when an asynchronous query has finished.
+		 * 
+		 * @param msg
+		 *            queried message or null if the query failed
+		 */
+		void onQueryResult(Msg msg);
 	}
 
 	private final transient Activity context;
-	private final transient Class stringResCls;
 	private final transient String baseUrl;
 	private final transient Resources res;
-	private final transient StringBuilder queryBuilder;
+	private final transient MessageRegistry registry;
+	private final transient ExecutorService executor;
+	private final transient QueryStats stats;
+	private final transient QueryCoalescer coalescer;
+	private final transient QueryCache cache;
+	private final transient MessageStore store;
+	private transient volatile QueryListener listener;
 
 	private ProtobufServer(final Activity context, final Class stringResCls,
-			final String baseUrl) {
+			final String baseUrl, final int poolSize) {
 		this.context = context;
-		this.stringResCls = stringResCls;
 		this.baseUrl = baseUrl;
 		this.res = this.context.getResources();
-		this.queryBuilder = new StringBuilder();
+		this.registry = new MessageRegistry(stringResCls);
+
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize,
+				poolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+			// idle threads are kept on older platforms
+			pool.allowCoreThreadTimeOut(true);
+		}
+		this.executor = pool;
+
+		this.stats = new QueryStats();
+		this.coalescer = new QueryCoalescer(this.stats);
+		this.cache = new QueryCache(new File(context.getCacheDir(), TAG));
+		this.store = new MessageStore(new File(context.getFilesDir(), TAG
+				+ ".store"), DEFAULT_STORE_LIMIT);
+	}
+
+	/**
+	 * Registers a message class so that querying it does not require
+	 * reflection. Message classes that are not registered are resolved when
+	 * they are queried for the first time.
+	 * 
+	 * @param cls
+	 *            class of the message
+	 * @param resourceId
+	 *            string resource holding the query for the message
+	 * @param prototype
+	 *            default instance of the message class
+	 */
+	public <Msg extends GeneratedMessage> void register(final Class<Msg> cls,
+			final int resourceId, final Msg prototype) {
+		this.registry.register(cls, resourceId, prototype);
 	}
 
 	/**
@@ -85,70 +181,550 @@ public final class ProtobufServer {
 		return this.queryAndStore(cls, false, args);
 	}
 
+	/**
+	 * Queries the server like {@link #query(Class, Object...)} and optionally
+	 * stores the response. Identical queries that are issued while one is in
+	 * flight share its network request and result.
+	 * 
+	 * @param cls
+	 *            class of the message that should be queried
+	 * @param store
+	 *            whether the response should be stored so that it can later
+	 *            be read using {@link #getStored(Class, Object...)}
+	 * @return instance of the provided class queried from the server or null
+	 *         if the query failed
+	 */
 	public <Msg extends GeneratedMessage> Msg queryAndStore(
 			final Class<Msg> cls, final boolean store, final Object... args) {
 
 		Msg msg = null;
 
+		final QueryListener listener = this.listener;
+		final QueryMetrics metrics = listener == null ? null
+				: new QueryMetrics(cls);
+
+		try {
+			final MessageType<Msg> type = this.registry.get(cls);
+			final URL url = this.getURL(type, args);
+			final QueryCache.Entry<Msg> cached = this.cache.get(type,
+					url.toString());
+
+			if (cached != null && this.cache.isFresh(type, cached)) {
+				if (metrics != null) {
+					metrics.setCacheStatus(CacheStatus.HIT);
+				}
+				msg = cached.getMessage();
+				if (store) {
+					this.storeMessage(type, url, msg);
+				}
+			} else if (cached != null
+					&& this.cache.mayServeStale(type, cached)) {
+				if (metrics != null) {
+					metrics.setCacheStatus(CacheStatus.STALE);
+				}
+				msg = cached.getMessage();
+				if (store) {
+					this.storeMessage(type, url, msg);
+				}
+				this.executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							fetch(type, url, store, cached, null);
+						} catch (Exception e) {
+							Log.w(TAG, "cannot revalidate " + url, e);
+						}
+					}
+				});
+			} else {
+				msg = this.fetch(type, url, store, cached, metrics);
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "cannot query " + cls.getSimpleName(), e);
+		}
+
+		if (metrics != null) {
+			metrics.finish(msg != null);
+			listener.onQueryFinished(metrics);
+		}
+
+		return msg;
+	}
+
+	/**
+	 * Attaches a listener that is notified about every finished query with
+	 * measurements of its stages. Queries are not measured if no listener is
+	 * attached.
+	 * 
+	 * @param listener
+	 *            listener to attach or null to detach the current one
+	 */
+	public void setQueryListener(final QueryListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * <p>
+	 * Determines how long responses for the given message class are cached.
+	 * </p>
+	 * 
+	 * <p>
+	 * By default, cached responses are revalidated with the server on every
+	 * query, which avoids transferring and parsing unmodified responses if the
+	 * server supports conditional requests.
+	 * </p>
+	 * 
+	 * @param cls
+	 *            class of the cached messages
+	 * @param timeToLive
+	 *            milliseconds for which a cached response is used without
+	 *            contacting the server
+	 * @param staleWhileRevalidate
+	 *            milliseconds after the time to live for which a cached
+	 *            response is still returned while it is revalidated in the
+	 *            background
+	 */
+	public void setCachePolicy(final Class<? extends GeneratedMessage> cls,
+			final long timeToLive, final long staleWhileRevalidate) {
+		this.cache.setPolicy(cls, timeToLive, staleWhileRevalidate);
+	}
+
+	/**
+	 * Returns counters describing the queries performed by this server.
+	 * 
+	 * @return query statistics
+	 */
+	public QueryStats getStats() {
+		return this.stats;
+	}
+
+	private <Msg extends GeneratedMessage> Msg fetch(
+			final MessageType<Msg> type, final URL url, final boolean store,
+			final QueryCache.Entry<Msg> cached, final QueryMetrics metrics)
+			throws Exception {
+		return this.coalescer.run(type.getMessageClass().getName() + ' '
+				+ store + ' ' + url, new Callable<Msg>() {
+
+			@Override
+			public Msg call() {
+				return retryQueryAndStore(type, url, store, cached, metrics);
+			}
+		}, metrics);
+	}
+
+	private <Msg extends GeneratedMessage> Msg retryQueryAndStore(
+			final MessageType<Msg> type, final URL url, final boolean store,
+			final QueryCache.Entry<Msg> cached, final QueryMetrics metrics) {
+
+		Msg msg = null;
+
 		int retryCount = 3;
 		boolean successful = false;
 		while (!successful && retryCount > 0) {
 			try {
-				msg = tryQueryAndStore(cls, store, args);
+				msg = tryQueryAndStore(type, url, store, cached, metrics);
 				successful = true;
 			} catch (Exception e) {
-				Log.w(TAG, "cannot parse " + cls.getSimpleName(), e);
+				Log.w(TAG, "cannot parse "
+						+ type.getMessageClass().getSimpleName(), e);
 				retryCount--;
+				if (metrics != null) {
+					metrics.countRetry();
+				}
 			}
 		}
 
 		return msg;
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * Queries the server on a worker thread. Queries for different messages
+	 * run concurrently, limited by the pool size this server was created
+	 * with.
+	 * 
+	 * @param cls
+	 *            class of the message that should be queried
+	 * @param callback
+	 *            receives the queried message on the UI thread, may be null
+	 * @return future holding the queried message or null if the query failed
+	 */
+	public <Msg extends GeneratedMessage> Future<Msg> queryAsync(
+			final Class<Msg> cls, final Callback<Msg> callback,
+			final Object... args) {
+		return this.queryAndStoreAsync(cls, false, callback, args);
+	}
+
+	public <Msg extends GeneratedMessage> Future<Msg> queryAndStoreAsync(
+			final Class<Msg> cls, final boolean store,
+			final Callback<Msg> callback, final Object... args) {
+		return this.executor.submit(new Callable<Msg>() {
+
+			@Override
+			public Msg call() {
+				final Msg msg = queryAndStore(cls, store, args);
+				if (callback != null) {
+					context.runOnUiThread(new Runnable() {
+
+						@Override
+						public void run() {
+							callback.onQueryResult(msg);
+						}
+					});
+				}
+				return msg;
+			}
+		});
+	}
+
+	/**
+	 * Receives the messages of a streaming query on the UI thread.
+	 * 
+	 * @param <Msg>
+	 *            class of the queried messages
+	 */
+	public interface StreamCallback<Msg extends GeneratedMessage> {
+
+		/**
+		 * Called on the UI thread for every received message as soon as it
+		 * has been parsed.
+		 * 
+		 * @param msg
+		 *            received message
+		 */
+		void onQueryItem(Msg msg);
+
+		/**
+		 * Called on the UI thread after the last message has been received.
+		 * 
+		 * @param successful
+		 *            whether all messages have been received
+		 */
+		void onQueryFinished(boolean successful);
+	}
+
+	/**
+	 * <p>
+	 * Queries the server for a sequence of length-delimited messages.
+	 * </p>
+	 * 
+	 * <p>
+	 * The query string is determined like in {@link #query(Class, Object...)}
+	 * from the class of the messages in the sequence. Messages are parsed
+	 * while they are transferred and can be processed before the transfer has
+	 * finished. Streaming responses are neither cached nor stored and the
+	 * query is not retried.
+	 * </p>
+	 * 
+	 * @param cls
+	 *            class of the messages in the queried sequence
+	 * @return iterator over the received messages that should be closed if it
+	 *         is not consumed completely
+	 * @throws IOException
+	 *             if the query cannot be sent
+	 */
+	public <Msg extends GeneratedMessage> MessageIterator<Msg> queryStream(
+			final Class<Msg> cls, final Object... args) throws IOException {
+		final MessageType<Msg> type;
+		try {
+			type = this.registry.get(cls);
+		} catch (Exception e) {
+			final IOException failure = new IOException("cannot resolve "
+					+ cls.getSimpleName());
+			failure.initCause(e);
+			throw failure;
+		}
+
+		final HttpURLConnection http = this.openConnection(this.getURL(type,
+				args));
+		return new MessageIterator<Msg>(type, this.decode(http,
+				new BufferedInputStream(http.getInputStream())));
+	}
+
+	/**
+	 * Queries the server for a sequence of length-delimited messages on a
+	 * worker thread and passes each message to the given callback as soon as
+	 * it has been received. The next message is only read after the callback
+	 * returned, so that a fast stream does not queue up on the UI thread.
+	 * 
+	 * @param cls
+	 *            class of the messages in the queried sequence
+	 * @param callback
+	 *            receives the queried messages on the UI thread
+	 * @return future that can be used to cancel the query
+	 */
+	public <Msg extends GeneratedMessage> Future<?> queryStreamAsync(
+			final Class<Msg> cls, final StreamCallback<Msg> callback,
+			final Object... args) {
+		return this.executor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				boolean successful = false;
+				MessageIterator<Msg> items = null;
+				final Semaphore delivered = new Semaphore(0);
+				try {
+					items = queryStream(cls, args);
+					while (!Thread.currentThread().isInterrupted()
+							&& items.hasNext()) {
+						final Msg msg = items.next();
+						context.runOnUiThread(new Runnable() {
+
+							@Override
+							public void run() {
+								try {
+									callback.onQueryItem(msg);
+								} finally {
+									delivered.release();
+								}
+							}
+						});
+						delivered.acquire();
+					}
+					successful = !Thread.currentThread().isInterrupted();
+				} catch (InterruptedException e) {
+					Log.i(TAG, "cancelled stream of " + cls.getSimpleName());
+				} catch (Exception e) {
+					Log.w(TAG, "cannot stream " + cls.getSimpleName(), e);
+				} finally {
+					if (items != null) {
+						items.close();
+					}
+				}
+
+				final boolean finished = successful;
+				context.runOnUiThread(new Runnable() {
+
+					@Override
+					public void run() {
+						callback.onQueryFinished(finished);
+					}
+				});
+			}
+		});
+	}
+
 	private <Msg extends GeneratedMessage> Msg tryQueryAndStore(
-			final Class<Msg> cls, final boolean store, final Object... args)
+			final MessageType<Msg> type, final URL url, final boolean store,
+			final QueryCache.Entry<Msg> cached, final QueryMetrics metrics)
 			throws Exception {
 		Msg msg = null;
 
-		final String name = cls.getSimpleName();
+		final HttpURLConnection http = this.openConnection(url);
+		if (cached != null) {
+			cached.addValidators(http);
+		}
+
+		if (metrics != null) {
+			long start = System.nanoTime();
+			http.connect();
+			metrics.setConnectTime(System.nanoTime() - start);
+			start = System.nanoTime();
+			http.getResponseCode();
+			metrics.setFirstByteTime(System.nanoTime() - start);
+		}
+
+		if (cached != null && isNotModified(http)) {
+			if (metrics != null) {
+				metrics.setCacheStatus(CacheStatus.NOT_MODIFIED);
+			}
+			http.disconnect();
+			this.cache.revalidated(url.toString(), cached);
+			msg = cached.getMessage();
+			if (store) {
+				this.storeMessage(type, url, msg);
+			}
+			return msg;
+		}
+
+		// the stored copy is teed off before decoding to keep it compressed
+		// and written to a temporary file to keep it out of the heap
+		final long start = metrics == null ? 0 : System.nanoTime();
+		final CountingInputStream wire = new CountingInputStream(
+				http.getInputStream(), metrics != null);
+		final File temp = store ? File.createTempFile("stored", null,
+				this.context.getCacheDir()) : null;
+		CountingInputStream decoded = null;
+		try {
+			final OutputStream stored = store ? new BufferedOutputStream(
+					new FileOutputStream(temp)) : null;
+			final TeeInputStream tee = store ? new TeeInputStream(wire,
+					stored) : null;
+			InputStream input = store ? tee : wire;
+			try {
+				decoded = new CountingInputStream(this.decode(http, input));
+				input = decoded;
+				msg = type.parse(decoded);
+				if (store) {
+					tee.drain();
+				}
+			} finally {
+				input.close();
+				if (stored != null) {
+					stored.close();
+				}
+			}
+
+			if (store) {
+				final InputStream storedInput = new FileInputStream(temp);
+				try {
+					this.store.put(getStoreKey(type, url), storedInput,
+							temp.length());
+				} finally {
+					storedInput.close();
+				}
+			}
+		} finally {
+			if (temp != null) {
+				temp.delete();
+			}
+		}
+		this.stats.countBytes(type.getMessageClass(), wire.getCount(),
+				decoded.getCount());
+		if (metrics != null) {
+			metrics.setCacheStatus(CacheStatus.MISS);
+			metrics.setTransferTime(wire.getReadTime());
+			metrics.setParseTime(System.nanoTime() - start
+					- wire.getReadTime());
+			metrics.setBytes(wire.getCount(), decoded.getCount());
+		}
+
+		this.cache.put(type, url.toString(), msg, http.getHeaderField("ETag"),
+				http.getLastModified());
+
+		return msg;
+	}
+
+	private static boolean isNotModified(final HttpURLConnection http)
+			throws IOException {
+		return http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+	}
 
-		final HttpURLConnection http = (HttpURLConnection) this.getURL(
-				this.stringResCls.getDeclaredField(name).getInt(null), args)
+	private HttpURLConnection openConnection(final URL url) throws IOException {
+		final HttpURLConnection http = (HttpURLConnection) url
 				.openConnection();
-		http.setReadTimeout(20000);
-		InputStream input = http.getInputStream();
+		http.setConnectTimeout(CONNECT_TIMEOUT);
+		http.setReadTimeout(READ_TIMEOUT);
+		// setting the header disables transparent decompression so that
+		// compressed bytes can be counted and stored
+		http.setRequestProperty("Accept-Encoding", "gzip");
+		return http;
+	}
+
+	private InputStream decode(final HttpURLConnection http,
+			final InputStream input) throws IOException {
+		final boolean gzipped = "gzip".equalsIgnoreCase(http
+				.getContentEncoding());
+		return gzipped ? new GZIPInputStream(input) : input;
+	}
+
+	/**
+	 * Checks whether stored data is compressed. Serialized messages never
+	 * start with the gzip magic number because its first byte would denote the
+	 * invalid wire type 7.
+	 */
+	private static boolean isGzipped(final byte[] data) {
+		return data.length >= 2 && data[0] == (byte) 0x1f
+				&& data[1] == (byte) 0x8b;
+	}
 
-		if (store) {
-			final OutputStream output = this.context.openFileOutput(name,
-					Context.MODE_PRIVATE);
-			final byte[] buffer = new byte[1024];
+	/**
+	 * Returns a message stored by a previous call of
+	 * {@link #queryAndStore(Class, boolean, Object...)} with the same
+	 * arguments without accessing the network.
+	 * 
+	 * @param cls
+	 *            class of the stored message
+	 * @return stored message or null if there is none
+	 */
+	public <Msg extends GeneratedMessage> Msg getStored(final Class<Msg> cls,
+			final Object... args) {
+		Msg msg = null;
+
+		try {
+			final MessageType<Msg> type = this.registry.get(cls);
+			final byte[] data = this.store.get(getStoreKey(type,
+					this.getURL(type, args)));
+			if (data != null) {
+				final InputStream input = new ByteArrayInputStream(data);
+				msg = type.parse(isGzipped(data) ? new GZIPInputStream(input)
+						: input);
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "cannot read stored " + cls.getSimpleName(), e);
+		}
+
+		return msg;
+	}
+
+	/**
+	 * Limits the size of stored messages. If it is exceeded, the least
+	 * recently used messages are removed.
+	 * 
+	 * @param maxBytes
+	 *            maximum number of bytes used for stored messages
+	 */
+	public void setStoreLimit(final long maxBytes) {
+		this.store.setMaxBytes(maxBytes);
+	}
+
+	private static String getStoreKey(final MessageType<?> type,
+			final URL url) {
+		return type.getMessageClass().getName() + ' ' + url;
+	}
+
+	/**
+	 * Stores a message that was served from the cache. The message is only
+	 * appended to the store if it differs from the stored one, so that cached
+	 * responses do not grow the log. Like messages stored from the network,
+	 * it is stored in compressed form.
+	 */
+	private void storeMessage(final MessageType<?> type, final URL url,
+			final GeneratedMessage msg) throws IOException {
+		final String key = getStoreKey(type, url);
+		final byte[] data = msg.toByteArray();
+		final byte[] stored = this.store.get(key);
+		if (stored == null || !Arrays.equals(data, decodeStored(stored))) {
+			final ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+					data.length / 2 + 32);
+			final GZIPOutputStream output = new GZIPOutputStream(compressed);
+			output.write(data);
+			output.close();
+			this.store.put(key, compressed.toByteArray());
+		}
+	}
+
+	/**
+	 * Returns the serialized message of stored data, decompressing it if
+	 * necessary.
+	 */
+	private static byte[] decodeStored(final byte[] data) throws IOException {
+		if (!isGzipped(data)) {
+			return data;
+		}
+
+		final InputStream input = new GZIPInputStream(new ByteArrayInputStream(
+				data));
+		try {
+			final ByteArrayOutputStream output = new ByteArrayOutputStream(
+					4 * data.length);
+			final byte[] buffer = new byte[8192];
 			int count = input.read(buffer);
 			while (count != -1) {
 				output.write(buffer, 0, count);
 				count = input.read(buffer);
 			}
+			return output.toByteArray();
+		} finally {
 			input.close();
-			output.close();
-			input = this.context.openFileInput(name);
 		}
-
-		msg = (Msg) cls.getDeclaredMethod("parseFrom", InputStream.class)
-				.invoke(null, input);
-		input.close();
-
-		return msg;
 	}
 
-	private URL getURL(final int resourceId, final Object[] args) {
-		this.queryBuilder.setLength(0);
-		this.queryBuilder.append(baseUrl);
-		this.queryBuilder
-				.append(String.format(res.getString(resourceId), args));
-
+	private URL getURL(final MessageType<?> type, final Object[] args) {
 		URL url = null;
 		try {
-			url = new URL(this.queryBuilder.toString());
+			url = new URL(type.getTemplate(this.res)
+					.expand(this.baseUrl, args));
 		} catch (MalformedURLException e) {
 			Log.e(TAG, "cannot construct URL", e);
 		}
@@ -0,0 +1,299 @@
+package org.humanoid.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import android.util.Log;
+
+import com.google.protobuf.GeneratedMessage;
+
+/**
+ * <p>
+ * Memory and disk cache for responses of a {@link ProtobufServer} keyed by
+ * query URL.
+ * </p>
+ * 
+ * <p>
+ * Cached responses remember their ETag and Last-Modified headers so that they
+ * can be revalidated using conditional requests. Per message class, cached
+ * responses can be considered fresh for some time, in which case they are
+ * used without contacting the server, and can be served while stale for some
+ * more time, in which case they are revalidated in the background. Like
+ * the responses in memory, the number of responses on disk is limited and
+ * the least recently used ones are deleted first.
+ * </p>
+ */
+final class QueryCache {
+	private static final String TAG = "QueryCache";
+	private static final int MAX_MEMORY_ENTRIES = 64;
+	private static final int MAX_DISK_ENTRIES = 256;
+
+	/**
+	 * A cached response together with the headers used to revalidate it.
+	 * 
+	 * @param <Msg>
+	 *            class of the cached message
+	 */
+	static final class Entry<Msg extends GeneratedMessage> {
+		private final transient Msg msg;
+		private final transient String etag;
+		private final transient long lastModified;
+		private transient volatile long fetchedAt;
+
+		Entry(final Msg msg, final String etag, final long lastModified,
+				final long fetchedAt) {
+			this.msg = msg;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.fetchedAt = fetchedAt;
+		}
+
+		Msg getMessage() {
+			return this.msg;
+		}
+
+		void addValidators(final HttpURLConnection http) {
+			if (this.etag != null) {
+				http.setRequestProperty("If-None-Match", this.etag);
+			}
+			if (this.lastModified > 0) {
+				http.setIfModifiedSince(this.lastModified);
+			}
+		}
+
+		long getAge() {
+			return System.currentTimeMillis() - this.fetchedAt;
+		}
+	}
+
+	/**
+	 * Determines how long cached responses of a message class are used.
+	 */
+	private static final class Policy {
+		private final transient long timeToLive;
+		private final transient long staleWhileRevalidate;
+
+		Policy(final long timeToLive, final long staleWhileRevalidate) {
+			this.timeToLive = timeToLive;
+			this.staleWhileRevalidate = staleWhileRevalidate;
+		}
+	}
+
+	private static final Policy DEFAULT_POLICY = new Policy(0, 0);
+
+	private final transient File dir;
+	private final transient Map<String, Entry<?>> memory;
+	private final transient ConcurrentMap<Class<?>, Policy> policies;
+
+	QueryCache(final File dir) {
+		this.dir = dir;
+		this.memory = new LinkedHashMap<String, Entry<?>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, QueryCache.Entry<?>> eldest) {
+				return this.size() > MAX_MEMORY_ENTRIES;
+			}
+		};
+		this.policies = new ConcurrentHashMap<Class<?>, Policy>();
+	}
+
+	void setPolicy(final Class<?> cls, final long timeToLive,
+			final long staleWhileRevalidate) {
+		this.policies.put(cls, new Policy(timeToLive, staleWhileRevalidate));
+	}
+
+	private Policy getPolicy(final Class<?> cls) {
+		final Policy policy = this.policies.get(cls);
+		return policy == null ? DEFAULT_POLICY : policy;
+	}
+
+	boolean isFresh(final MessageType<?> type, final Entry<?> entry) {
+		final Policy policy = this.getPolicy(type.getMessageClass());
+		return entry.getAge() < policy.timeToLive;
+	}
+
+	boolean mayServeStale(final MessageType<?> type, final Entry<?> entry) {
+		final Policy policy = this.getPolicy(type.getMessageClass());
+		return entry.getAge() < policy.timeToLive
+				+ policy.staleWhileRevalidate;
+	}
+
+	/**
+	 * Returns the cached response for the given URL, reading it from disk if
+	 * it is not in memory.
+	 * 
+	 * @param type
+	 *            type of the cached message
+	 * @param url
+	 *            query URL of the cached response
+	 * @return cached response or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	<Msg extends GeneratedMessage> Entry<Msg> get(
+			final MessageType<Msg> type, final String url) {
+		Entry<Msg> entry;
+		synchronized (this.memory) {
+			entry = (Entry<Msg>) this.memory.get(url);
+		}
+
+		if (entry == null) {
+			entry = this.read(type, url);
+			if (entry != null) {
+				synchronized (this.memory) {
+					this.memory.put(url, entry);
+				}
+			}
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Caches a response received from the server. Responses are only written
+	 * to disk if they can be revalidated or are fresh for some time.
+	 */
+	<Msg extends GeneratedMessage> void put(final MessageType<Msg> type,
+			final String url, final Msg msg, final String etag,
+			final long lastModified) {
+		final Entry<Msg> entry = new Entry<Msg>(msg, etag, lastModified,
+				System.currentTimeMillis());
+		synchronized (this.memory) {
+			this.memory.put(url, entry);
+		}
+
+		if (etag != null || lastModified > 0
+				|| this.getPolicy(type.getMessageClass()).timeToLive > 0) {
+			this.write(url, entry);
+		}
+	}
+
+	/**
+	 * Marks a cached response as fresh after the server confirmed that it has
+	 * not been modified. The new time is also written to disk, so that the
+	 * response stays fresh after it was evicted from memory.
+	 */
+	void revalidated(final String url, final Entry<?> entry) {
+		entry.fetchedAt = System.currentTimeMillis();
+		if (this.getFile(url).exists()) {
+			this.write(url, entry);
+		}
+	}
+
+	private File getFile(final String url) {
+		return new File(this.dir, Integer.toHexString(url.hashCode()));
+	}
+
+	private <Msg extends GeneratedMessage> Entry<Msg> read(
+			final MessageType<Msg> type, final String url) {
+		final File file = this.getFile(url);
+		if (!file.exists()) {
+			return null;
+		}
+
+		Entry<Msg> entry = null;
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (url.equals(input.readUTF())) {
+				final String etag = input.readUTF();
+				final long lastModified = input.readLong();
+				final long fetchedAt = input.readLong();
+				entry = new Entry<Msg>(type.parse(input),
+						etag.length() == 0 ? null : etag, lastModified,
+						fetchedAt);
+				// files that are not read for the longest time are pruned
+				file.setLastModified(System.currentTimeMillis());
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "cannot read cached " + url, e);
+			file.delete();
+		} finally {
+			try {
+				if (input != null) {
+					input.close();
+				}
+			} catch (IOException e) {
+			}
+		}
+
+		return entry;
+	}
+
+	private void write(final String url, final Entry<?> entry) {
+		if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+			Log.w(TAG, "cannot create " + this.dir);
+			return;
+		}
+
+		File temp = null;
+		DataOutputStream output = null;
+		try {
+			temp = File.createTempFile("query", null, this.dir);
+			output = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp)));
+			output.writeUTF(url);
+			output.writeUTF(entry.etag == null ? "" : entry.etag);
+			output.writeLong(entry.lastModified);
+			output.writeLong(entry.fetchedAt);
+			output.write(entry.msg.toByteArray());
+			output.close();
+			output = null;
+
+			if (!temp.renameTo(this.getFile(url))) {
+				throw new IOException("cannot rename " + temp);
+			}
+			temp = null;
+			this.prune();
+		} catch (IOException e) {
+			Log.w(TAG, "cannot cache " + url, e);
+		} finally {
+			try {
+				if (output != null) {
+					output.close();
+				}
+			} catch (IOException e) {
+			}
+			if (temp != null) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently used files if there are more cached
+	 * responses on disk than allowed.
+	 */
+	private void prune() {
+		final File[] files = this.dir.listFiles();
+		if (files == null || files.length <= MAX_DISK_ENTRIES) {
+			return;
+		}
+
+		final long[] times = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			times[i] = files[i].lastModified();
+		}
+		Arrays.sort(times);
+		final long oldest = times[files.length - MAX_DISK_ENTRIES];
+		for (File file : files) {
+			if (file.lastModified() < oldest) {
+				file.delete();
+			}
+		}
+	}
+}
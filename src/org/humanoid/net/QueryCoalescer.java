@@ -0,0 +1,71 @@
+package org.humanoid.net;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs identical concurrent computations only once. A computation started
+ * while another one with the same key is in flight waits for and shares the
+ * result of the running one.
+ */
+final class QueryCoalescer {
+
+	private final transient ConcurrentMap<String, FutureTask<?>> inFlight;
+	private final transient QueryStats stats;
+
+	QueryCoalescer(final QueryStats stats) {
+		this.inFlight = new ConcurrentHashMap<String, FutureTask<?>>();
+		this.stats = stats;
+	}
+
+	/**
+	 * Runs the given computation unless one with the same key is in flight in
+	 * which case its result is returned instead.
+	 * 
+	 * @param key
+	 *            identifies computations with equal results
+	 * @param computation
+	 *            computation to run if none with the same key is in flight
+	 * @param metrics
+	 *            measurements of the query that is marked if it is coalesced,
+	 *            may be null
+	 * @return result of the computation with the given key
+	 * @throws Exception
+	 *             if the shared computation fails
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T run(final String key, final Callable<T> computation,
+			final QueryMetrics metrics) throws Exception {
+		this.stats.countRequested();
+
+		final FutureTask<T> task = new FutureTask<T>(computation);
+		final FutureTask<T> running = (FutureTask<T>) this.inFlight
+				.putIfAbsent(key, task);
+
+		try {
+			if (running == null) {
+				try {
+					task.run();
+				} finally {
+					this.inFlight.remove(key, task);
+				}
+				return task.get();
+			} else {
+				this.stats.countCoalesced();
+				if (metrics != null) {
+					metrics.setCoalesced();
+				}
+				return running.get();
+			}
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package org.humanoid.net;
+
+/**
+ * Observes the queries performed by a {@link ProtobufServer}. Queries are only
+ * measured while a listener is attached.
+ */
+public interface QueryListener {
+
+	/**
+	 * Called on the thread that performed a query after it has finished.
+	 * 
+	 * @param metrics
+	 *            measurements of the finished query
+	 */
+	void onQueryFinished(QueryMetrics metrics);
+}
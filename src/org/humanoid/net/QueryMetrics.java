@@ -0,0 +1,151 @@
+package org.humanoid.net;
+
+/**
+ * <p>
+ * Measurements of a single query performed by a {@link ProtobufServer}.
+ * </p>
+ * 
+ * <p>
+ * Times are given in nanoseconds. The connect time includes name resolution
+ * and the time to first byte is measured from the established connection to
+ * the response headers. Because responses are parsed while they are
+ * transferred, the transfer time is the time spent waiting for response bytes
+ * and the parse time is the remaining time spent reading the response. Times
+ * of a network request are only available to the query that performed it,
+ * not to queries that were coalesced with it or served from the cache.
+ * </p>
+ */
+public final class QueryMetrics {
+
+	/**
+	 * Describes how a query used the response cache.
+	 */
+	public enum CacheStatus {
+		/** The query was answered by a fresh cached response. */
+		HIT,
+		/** A stale cached response was returned and revalidated. */
+		STALE,
+		/** The server confirmed that the cached response is unmodified. */
+		NOT_MODIFIED,
+		/** The response was transferred from the server. */
+		MISS
+	}
+
+	private final transient Class<?> messageClass;
+	private final transient long startTime;
+
+	private transient long totalTime;
+	private transient long connectTime;
+	private transient long firstByteTime;
+	private transient long transferTime;
+	private transient long parseTime;
+	private transient int retries;
+	private transient long wireBytes;
+	private transient long decodedBytes;
+	private transient CacheStatus cacheStatus = CacheStatus.MISS;
+	private transient boolean coalesced;
+	private transient boolean successful;
+
+	QueryMetrics(final Class<?> messageClass) {
+		this.messageClass = messageClass;
+		this.startTime = System.nanoTime();
+	}
+
+	void finish(final boolean successful) {
+		this.totalTime = System.nanoTime() - this.startTime;
+		this.successful = successful;
+	}
+
+	void setConnectTime(final long connectTime) {
+		this.connectTime = connectTime;
+	}
+
+	void setFirstByteTime(final long firstByteTime) {
+		this.firstByteTime = firstByteTime;
+	}
+
+	void setTransferTime(final long transferTime) {
+		this.transferTime = transferTime;
+	}
+
+	void setParseTime(final long parseTime) {
+		this.parseTime = parseTime;
+	}
+
+	void countRetry() {
+		this.retries++;
+	}
+
+	void setBytes(final long wireBytes, final long decodedBytes) {
+		this.wireBytes = wireBytes;
+		this.decodedBytes = decodedBytes;
+	}
+
+	void setCacheStatus(final CacheStatus cacheStatus) {
+		this.cacheStatus = cacheStatus;
+	}
+
+	void setCoalesced() {
+		this.coalesced = true;
+	}
+
+	public Class<?> getMessageClass() {
+		return this.messageClass;
+	}
+
+	public long getTotalTime() {
+		return this.totalTime;
+	}
+
+	public long getConnectTime() {
+		return this.connectTime;
+	}
+
+	public long getFirstByteTime() {
+		return this.firstByteTime;
+	}
+
+	public long getTransferTime() {
+		return this.transferTime;
+	}
+
+	public long getParseTime() {
+		return this.parseTime;
+	}
+
+	/**
+	 * Returns the number of failed attempts before the query succeeded or
+	 * gave up.
+	 * 
+	 * @return number of failed attempts
+	 */
+	public int getRetries() {
+		return this.retries;
+	}
+
+	public long getWireBytes() {
+		return this.wireBytes;
+	}
+
+	public long getDecodedBytes() {
+		return this.decodedBytes;
+	}
+
+	public CacheStatus getCacheStatus() {
+		return this.cacheStatus;
+	}
+
+	/**
+	 * Returns whether the query shared the network request of an identical
+	 * query that was in flight.
+	 * 
+	 * @return whether the query was coalesced
+	 */
+	public boolean isCoalesced() {
+		return this.coalesced;
+	}
+
+	public boolean isSuccessful() {
+		return this.successful;
+	}
+}
@@ -0,0 +1,190 @@
+package org.humanoid.net;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import android.util.Log;
+
+/**
+ * <p>
+ * Query listener that aggregates measurements per message class.
+ * </p>
+ * 
+ * <p>
+ * Latency percentiles are computed over a rolling window of the most recent
+ * queries of each message class. Stage times are averaged over the same
+ * window, counters cover all recorded queries.
+ * </p>
+ */
+public class QueryRecorder implements QueryListener {
+	private static final String TAG = "QueryRecorder";
+	private static final int DEFAULT_WINDOW_SIZE = 256;
+	private static final double NANOS_PER_MILLI = 1000000.0;
+
+	/**
+	 * Measurements of the queries of a single message class.
+	 */
+	private static final class Record {
+		private final transient long[] totalTimes;
+		private final transient long[] connectTimes;
+		private final transient long[] firstByteTimes;
+		private final transient long[] transferTimes;
+		private final transient long[] parseTimes;
+
+		private transient int next;
+		private transient long queries;
+		private transient long failures;
+		private transient long retries;
+		private transient long coalesced;
+		private transient long wireBytes;
+		private transient long decodedBytes;
+		private final transient long[] cacheStatusCounts;
+
+		Record(final int windowSize) {
+			this.totalTimes = new long[windowSize];
+			this.connectTimes = new long[windowSize];
+			this.firstByteTimes = new long[windowSize];
+			this.transferTimes = new long[windowSize];
+			this.parseTimes = new long[windowSize];
+			this.cacheStatusCounts = new long[QueryMetrics.CacheStatus
+					.values().length];
+		}
+
+		synchronized void add(final QueryMetrics metrics) {
+			final int index = this.next;
+			this.totalTimes[index] = metrics.getTotalTime();
+			this.connectTimes[index] = metrics.getConnectTime();
+			this.firstByteTimes[index] = metrics.getFirstByteTime();
+			this.transferTimes[index] = metrics.getTransferTime();
+			this.parseTimes[index] = metrics.getParseTime();
+			this.next = (index + 1) % this.totalTimes.length;
+
+			this.queries++;
+			if (!metrics.isSuccessful()) {
+				this.failures++;
+			}
+			this.retries += metrics.getRetries();
+			if (metrics.isCoalesced()) {
+				this.coalesced++;
+			}
+			this.wireBytes += metrics.getWireBytes();
+			this.decodedBytes += metrics.getDecodedBytes();
+			this.cacheStatusCounts[metrics.getCacheStatus().ordinal()]++;
+		}
+
+		synchronized void appendTo(final StringBuilder dump) {
+			final int size = (int) Math.min(this.queries,
+					this.totalTimes.length);
+			final long[] sorted = new long[size];
+			System.arraycopy(this.totalTimes, 0, sorted, 0, size);
+			Arrays.sort(sorted);
+
+			dump.append(" queries=").append(this.queries);
+			dump.append(" failures=").append(this.failures);
+			dump.append(" retries=").append(this.retries);
+			dump.append(" coalesced=").append(this.coalesced);
+			for (QueryMetrics.CacheStatus status : QueryMetrics.CacheStatus
+					.values()) {
+				dump.append(' ').append(status.name().toLowerCase(Locale.US))
+						.append('=')
+						.append(this.cacheStatusCounts[status.ordinal()]);
+			}
+			dump.append(" wireBytes=").append(this.wireBytes);
+			dump.append(" decodedBytes=").append(this.decodedBytes);
+			dump.append(" p50=").append(toMillis(percentile(sorted, 50)));
+			dump.append(" p95=").append(toMillis(percentile(sorted, 95)));
+			dump.append(" p99=").append(toMillis(percentile(sorted, 99)));
+			dump.append(" connect=").append(mean(this.connectTimes, size));
+			dump.append(" firstByte=").append(mean(this.firstByteTimes, size));
+			dump.append(" transfer=").append(mean(this.transferTimes, size));
+			dump.append(" parse=").append(mean(this.parseTimes, size));
+		}
+	}
+
+	private static long percentile(final long[] sorted, final int percent) {
+		return sorted.length == 0 ? 0 : sorted[(sorted.length - 1) * percent
+				/ 100];
+	}
+
+	private static double mean(final long[] values, final int size) {
+		long sum = 0;
+		for (int i = 0; i < size; i++) {
+			sum += values[i];
+		}
+		return size == 0 ? 0 : toMillis(sum / size);
+	}
+
+	private static double toMillis(final long nanos) {
+		return Math.round(nanos / NANOS_PER_MILLI * 10) / 10.0;
+	}
+
+	private final transient int windowSize;
+	private final transient ConcurrentMap<Class<?>, Record> records;
+
+	public QueryRecorder() {
+		this(DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Creates a recorder that computes latency percentiles over the given
+	 * number of most recent queries per message class.
+	 * 
+	 * @param windowSize
+	 *            number of queries considered for percentiles
+	 */
+	public QueryRecorder(final int windowSize) {
+		this.windowSize = windowSize;
+		this.records = new ConcurrentHashMap<Class<?>, Record>();
+	}
+
+	@Override
+	public void onQueryFinished(final QueryMetrics metrics) {
+		Record record = this.records.get(metrics.getMessageClass());
+		if (record == null) {
+			record = new Record(this.windowSize);
+			final Record existing = this.records.putIfAbsent(
+					metrics.getMessageClass(), record);
+			if (existing != null) {
+				record = existing;
+			}
+		}
+		record.add(metrics);
+	}
+
+	/**
+	 * Returns a summary of the recorded queries with one line per message
+	 * class. Times are given in milliseconds.
+	 * 
+	 * @return summary of recorded queries
+	 */
+	public String dump() {
+		final StringBuilder dump = new StringBuilder();
+		for (Map.Entry<Class<?>, Record> entry : this.records.entrySet()) {
+			dump.append(entry.getKey().getSimpleName()).append(':');
+			entry.getValue().appendTo(dump);
+			dump.append('\n');
+		}
+		return dump.toString();
+	}
+
+	/**
+	 * Writes the summary returned by {@link #dump()} to the log.
+	 */
+	public void log() {
+		for (String line : this.dump().split("\n")) {
+			if (line.length() > 0) {
+				Log.i(TAG, line);
+			}
+		}
+	}
+
+	/**
+	 * Discards all recorded measurements.
+	 */
+	public void clear() {
+		this.records.clear();
+	}
+}
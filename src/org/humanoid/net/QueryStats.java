@@ -0,0 +1,127 @@
+package org.humanoid.net;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the queries performed by a {@link ProtobufServer}.
+ */
+public final class QueryStats {
+
+	private final transient AtomicLong requested = new AtomicLong();
+	private final transient AtomicLong coalesced = new AtomicLong();
+	private final transient AtomicLong wireBytes = new AtomicLong();
+	private final transient AtomicLong decodedBytes = new AtomicLong();
+	private final transient ConcurrentMap<Class<?>, long[]> bytesByClass;
+
+	QueryStats() {
+		this.bytesByClass = new ConcurrentHashMap<Class<?>, long[]>();
+	}
+
+	void countRequested() {
+		this.requested.incrementAndGet();
+	}
+
+	void countCoalesced() {
+		this.coalesced.incrementAndGet();
+	}
+
+	void countBytes(final Class<?> cls, final long wire, final long decoded) {
+		this.wireBytes.addAndGet(wire);
+		this.decodedBytes.addAndGet(decoded);
+
+		long[] bytes = this.bytesByClass.get(cls);
+		if (bytes == null) {
+			bytes = new long[2];
+			final long[] existing = this.bytesByClass.putIfAbsent(cls, bytes);
+			if (existing != null) {
+				bytes = existing;
+			}
+		}
+		synchronized (bytes) {
+			bytes[0] += wire;
+			bytes[1] += decoded;
+		}
+	}
+
+	/**
+	 * Returns the number of queries that were requested, including coalesced
+	 * ones.
+	 * 
+	 * @return number of requested queries
+	 */
+	public long getRequested() {
+		return this.requested.get();
+	}
+
+	/**
+	 * Returns the number of queries that did not access the network because
+	 * they shared the result of an identical query that was in flight.
+	 * 
+	 * @return number of coalesced queries
+	 */
+	public long getCoalesced() {
+		return this.coalesced.get();
+	}
+
+	/**
+	 * Returns the number of bytes received from the server, which may be
+	 * compressed.
+	 * 
+	 * @return number of received bytes
+	 */
+	public long getWireBytes() {
+		return this.wireBytes.get();
+	}
+
+	/**
+	 * Returns the number of bytes of received messages after decompression.
+	 * 
+	 * @return number of decoded bytes
+	 */
+	public long getDecodedBytes() {
+		return this.decodedBytes.get();
+	}
+
+	/**
+	 * Returns the number of bytes received from the server for messages of
+	 * the given class.
+	 * 
+	 * @param cls
+	 *            class of the received messages
+	 * @return number of received bytes
+	 */
+	public long getWireBytes(final Class<?> cls) {
+		return this.getBytes(cls, 0);
+	}
+
+	/**
+	 * Returns the number of bytes of received messages of the given class
+	 * after decompression.
+	 * 
+	 * @param cls
+	 *            class of the received messages
+	 * @return number of decoded bytes
+	 */
+	public long getDecodedBytes(final Class<?> cls) {
+		return this.getBytes(cls, 1);
+	}
+
+	private long getBytes(final Class<?> cls, final int index) {
+		final long[] bytes = this.bytesByClass.get(cls);
+		if (bytes == null) {
+			return 0;
+		}
+		synchronized (bytes) {
+			return bytes[index];
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "requested=" + this.getRequested() + ", coalesced="
+				+ this.getCoalesced() + ", wireBytes=" + this.getWireBytes()
+				+ ", decodedBytes=" + this.getDecodedBytes();
+	}
+}
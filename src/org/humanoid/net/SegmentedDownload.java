@@ -0,0 +1,237 @@
+package org.humanoid.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * <p>
+ * Download of the segments of a {@link PartialDownload} over concurrent
+ * connections.
+ * </p>
+ * 
+ * <p>
+ * Each segment is requested with its own range request and written to its
+ * position in the preallocated partial file. The progress of each segment is
+ * saved regularly, so an interrupted download is resumed segment by segment.
+ * If one segment fails, the others are cancelled.
+ * </p>
+ */
+final class SegmentedDownload {
+	private static final String TAG = "SegmentedDownload";
+	private static final int MAX_BUFFER_SIZE = 64 * 1024;
+	private static final long SAVE_INTERVAL = 4 * 1024 * 1024;
+
+	/**
+	 * Downloads the remaining bytes of one segment.
+	 */
+	private final class Segment implements Callable<Void> {
+		private final transient int index;
+
+		Segment(final int index) {
+			this.index = index;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			final PartialDownload partial = SegmentedDownload.this.partial;
+			final long start = partial.getSegmentStart(this.index);
+			final long length = partial.getSegmentEnd(this.index) - start;
+			long progress = partial.getSegmentProgress(this.index);
+			if (progress >= length) {
+				return null;
+			}
+
+			final InputStream input = partial.openSegment(this.index);
+			SegmentedDownload.this.inputs.add(input);
+			final RandomAccessFile file = new RandomAccessFile(
+					partial.getPartFile(), "rw");
+			final FileChannel channel = file.getChannel();
+			final byte[] bytes = new byte[SegmentedDownload.this.bufferSize];
+			final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			long saved = progress;
+			try {
+				while (progress < length) {
+					if (Thread.interrupted()) {
+						throw new InterruptedIOException();
+					}
+					final int count = input.read(bytes, 0,
+							(int) Math.min(bytes.length, length - progress));
+					if (count == -1) {
+						break;
+					}
+
+					buffer.position(0).limit(count);
+					while (buffer.hasRemaining()) {
+						channel.write(buffer,
+								start + progress + buffer.position());
+					}
+					progress += count;
+					SegmentedDownload.this.received.addAndGet(count);
+
+					final boolean save = progress - saved >= SAVE_INTERVAL;
+					partial.setSegmentProgress(this.index, progress, save);
+					if (save) {
+						saved = progress;
+					}
+				}
+			} finally {
+				if (partial.isSegmented()) {
+					try {
+						partial.setSegmentProgress(this.index, progress, true);
+					} catch (IOException e) {
+						Log.w(TAG, "cannot save segment " + this.index, e);
+					}
+				}
+				SegmentedDownload.this.inputs.remove(input);
+				input.close();
+				file.close();
+			}
+
+			return null;
+		}
+	}
+
+	private final transient PartialDownload partial;
+	private final transient int bufferSize;
+	private final transient AtomicLong received;
+	private final transient List<Future<Void>> futures;
+	private final transient Set<InputStream> inputs;
+
+	private transient ExecutorService executor;
+
+	SegmentedDownload(final PartialDownload partial, final int bufferSize) {
+		this.partial = partial;
+		this.bufferSize = Math.min(bufferSize, MAX_BUFFER_SIZE);
+		this.received = new AtomicLong();
+		this.futures = new ArrayList<Future<Void>>();
+		this.inputs = Collections.synchronizedSet(new HashSet<InputStream>());
+	}
+
+	/**
+	 * Starts downloading all segments, each on its own thread.
+	 */
+	void start() {
+		final int count = this.partial.getSegmentCount();
+		long done = 0;
+		for (int i = 0; i < count; i++) {
+			done += this.partial.getSegmentProgress(i);
+		}
+		this.received.set(done);
+
+		this.executor = Executors.newFixedThreadPool(count);
+		for (int i = 0; i < count; i++) {
+			this.futures.add(this.executor.submit(new Segment(i)));
+		}
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Returns the number of bytes of all segments that have been written.
+	 * 
+	 * @return number of received bytes
+	 */
+	long getReceived() {
+		return this.received.get();
+	}
+
+	/**
+	 * Waits until all segments are downloaded or the given time has passed.
+	 * 
+	 * @param millis
+	 *            maximum time to wait in milliseconds
+	 * @return whether all segments are downloaded
+	 * @throws IOException
+	 *             if a segment failed, the remaining segments are cancelled
+	 */
+	boolean await(final long millis) throws IOException {
+		final boolean finished;
+		try {
+			finished = this.executor.awaitTermination(millis,
+					TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			this.cancel();
+			throw new InterruptedIOException();
+		}
+
+		for (Future<Void> future : this.futures) {
+			if (future.isDone()) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					this.cancel();
+					throw new InterruptedIOException();
+				} catch (ExecutionException e) {
+					this.cancel();
+					final Throwable cause = e.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					}
+					final IOException failure = new IOException(
+							"segment failed");
+					failure.initCause(cause);
+					throw failure;
+				}
+			}
+		}
+
+		return finished;
+	}
+
+	/**
+	 * Stops downloading segments and waits until no segment writes to the
+	 * partial file anymore, so that it can be discarded.
+	 * 
+	 * @throws InterruptedIOException
+	 *             if the thread was interrupted while waiting
+	 */
+	void stop() throws InterruptedIOException {
+		this.cancel();
+		if (this.executor == null) {
+			return;
+		}
+		try {
+			while (!this.executor.awaitTermination(Long.MAX_VALUE,
+					TimeUnit.MILLISECONDS)) {
+				// segments blocked in a connection time out eventually
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Stops downloading segments. Received bytes are kept. Connections are
+	 * closed because interrupting a thread does not stop a blocking read.
+	 */
+	void cancel() {
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+		}
+		synchronized (this.inputs) {
+			for (InputStream input : this.inputs) {
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package org.humanoid.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Input stream that copies all bytes read from it to an output stream.
+ */
+final class TeeInputStream extends FilterInputStream {
+
+	private final transient OutputStream output;
+
+	TeeInputStream(final InputStream input, final OutputStream output) {
+		super(input);
+		this.output = output;
+	}
+
+	@Override
+	public int read() throws IOException {
+		final int b = super.read();
+		if (b != -1) {
+			this.output.write(b);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(final byte[] buffer, final int offset, final int length)
+			throws IOException {
+		final int count = super.read(buffer, offset, length);
+		if (count > 0) {
+			this.output.write(buffer, offset, count);
+		}
+		return count;
+	}
+
+	@Override
+	public long skip(final long count) throws IOException {
+		final byte[] buffer = new byte[(int) Math.min(count, 4096)];
+		long skipped = 0;
+		while (skipped < count) {
+			final int read = this.read(buffer, 0,
+					(int) Math.min(count - skipped, buffer.length));
+			if (read == -1) {
+				break;
+			}
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Reads and copies the remaining bytes of the underlying stream.
+	 * 
+	 * @throws IOException
+	 *             if reading or writing fails
+	 */
+	void drain() throws IOException {
+		final byte[] buffer = new byte[4096];
+		while (this.read(buffer, 0, buffer.length) != -1) {
+			// bytes are copied by read
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package org.humanoid.net;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+
+/**
+ * <p>
+ * Query string with placeholders that is parsed once and can then be
+ * expanded concurrently from many threads.
+ * </p>
+ * 
+ * <p>
+ * Templates use the syntax of {@link String#format(String, Object...)}
+ * restricted to the conversions {@code %s}, which inserts the percent-encoded
+ * string representation of its argument, and {@code %d}, which inserts an
+ * integral number. Arguments can be referred to by position as in
+ * {@code %2$s}, and {@code %%} inserts a percent sign. Templates using other
+ * format specifiers are expanded with {@link String#format(String, Object...)}
+ * without encoding their arguments.
+ * </p>
+ */
+public final class UrlTemplate {
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	private static final int ESTIMATED_ARG_LENGTH = 16;
+
+	/**
+	 * Parses the given template.
+	 * 
+	 * @param format
+	 *            query string with placeholders
+	 * @return compiled template
+	 */
+	public static UrlTemplate compile(final String format) {
+		final int maxPlaceholders = format.length() / 2;
+		final StringBuilder literal = new StringBuilder();
+		final String[] literals = new String[maxPlaceholders + 1];
+		final int[] argIndices = new int[maxPlaceholders];
+		final char[] conversions = new char[maxPlaceholders];
+
+		int count = 0;
+		int nextArg = 0;
+		int pos = 0;
+		while (pos < format.length()) {
+			final char c = format.charAt(pos++);
+			if (c != '%') {
+				literal.append(c);
+				continue;
+			}
+
+			int argIndex = nextArg;
+			int end = pos;
+			while (end < format.length()
+					&& Character.isDigit(format.charAt(end))) {
+				end++;
+			}
+			if (end > pos && end < format.length()
+					&& format.charAt(end) == '$') {
+				argIndex = Integer.parseInt(format.substring(pos, end)) - 1;
+				pos = end + 1;
+			} else if (end > pos) {
+				return new UrlTemplate(format);
+			} else {
+				nextArg++;
+			}
+
+			final char conversion = pos < format.length() ? format
+					.charAt(pos++) : 0;
+			if (conversion == '%' && argIndex == nextArg - 1) {
+				nextArg--;
+				literal.append('%');
+			} else if ((conversion == 's' || conversion == 'd')
+					&& argIndex >= 0) {
+				literals[count] = literal.toString();
+				argIndices[count] = argIndex;
+				conversions[count] = conversion;
+				count++;
+				literal.setLength(0);
+			} else {
+				return new UrlTemplate(format);
+			}
+		}
+		literals[count] = literal.toString();
+
+		return new UrlTemplate(format, literals, argIndices, conversions,
+				count);
+	}
+
+	private final transient String format;
+	private final transient String[] literals;
+	private final transient int[] argIndices;
+	private final transient char[] conversions;
+	private final transient int placeholderCount;
+	private final transient int literalLength;
+
+	private UrlTemplate(final String format, final String[] literals,
+			final int[] argIndices, final char[] conversions,
+			final int placeholderCount) {
+		this.format = format;
+		this.literals = literals;
+		this.argIndices = argIndices;
+		this.conversions = conversions;
+		this.placeholderCount = placeholderCount;
+
+		int length = 0;
+		for (int i = 0; i <= placeholderCount; i++) {
+			length += literals[i].length();
+		}
+		this.literalLength = length;
+	}
+
+	private UrlTemplate(final String format) {
+		this(format, null, null, null, -1);
+	}
+
+	/**
+	 * Expands this template with the given arguments and appends the result to
+	 * the given prefix.
+	 * 
+	 * @param prefix
+	 *            string preceding the expanded template, usually a base URL
+	 * @param args
+	 *            arguments for the placeholders of this template
+	 * @return concatenation of the prefix and the expanded template
+	 * @throws IllegalArgumentException
+	 *             if an argument is missing or does not match its placeholder
+	 */
+	public String expand(final String prefix, final Object... args) {
+		if (this.placeholderCount < 0) {
+			return prefix + String.format(this.format, args);
+		}
+
+		final StringBuilder url = new StringBuilder(prefix.length()
+				+ this.literalLength + this.placeholderCount
+				* ESTIMATED_ARG_LENGTH);
+		url.append(prefix);
+		for (int i = 0; i < this.placeholderCount; i++) {
+			url.append(this.literals[i]);
+
+			final int argIndex = this.argIndices[i];
+			if (args == null || argIndex >= args.length) {
+				throw new IllegalArgumentException("missing argument "
+						+ (argIndex + 1) + " for " + this.format);
+			}
+			final Object arg = args[argIndex];
+			if (this.conversions[i] == 'd') {
+				appendInteger(url, arg);
+			} else {
+				appendEncoded(url, String.valueOf(arg));
+			}
+		}
+		url.append(this.literals[this.placeholderCount]);
+
+		return url.toString();
+	}
+
+	private static void appendInteger(final StringBuilder url,
+			final Object arg) {
+		if (arg instanceof Integer || arg instanceof Long
+				|| arg instanceof Short || arg instanceof Byte) {
+			url.append(((Number) arg).longValue());
+		} else if (arg instanceof BigInteger) {
+			url.append(arg);
+		} else {
+			throw new IllegalArgumentException("not an integer: " + arg);
+		}
+	}
+
+	/**
+	 * Appends the given string percent-encoding all characters except
+	 * unreserved ones as defined in RFC 3986.
+	 */
+	private static void appendEncoded(final StringBuilder url,
+			final String arg) {
+		final int length = arg.length();
+		int plain = 0;
+		while (plain < length && isUnreserved(arg.charAt(plain))) {
+			plain++;
+		}
+		url.append(arg, 0, plain);
+		if (plain == length) {
+			return;
+		}
+
+		final byte[] bytes;
+		try {
+			bytes = arg.substring(plain).getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		for (byte b : bytes) {
+			final char c = (char) (b & 0xff);
+			if (isUnreserved(c)) {
+				url.append(c);
+			} else {
+				url.append('%').append(HEX[c >> 4]).append(HEX[c & 0xf]);
+			}
+		}
+	}
+
+	private static boolean isUnreserved(final char c) {
+		return 'a' <= c && c <= 'z' || 'A' <= c && c <= 'Z' || '0' <= c
+				&& c <= '9' || c == '-' || c == '.' || c == '_' || c == '~';
+	}
+
+	@Override
+	public String toString() {
+		return this.format;
+	}
+}